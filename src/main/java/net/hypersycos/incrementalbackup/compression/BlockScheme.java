@@ -0,0 +1,102 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import net.hypersycos.incrementalbackup.util.AlphaNumericString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Stores data in a BlockStore, so blocks it shares with any other backup file, in any full sequence, are only kept
+ * once. The backup file is just the recipe of its blocks, each of which is compressed on its own. The store is given
+ * by whoever parses the backup file's name, and the flags are its id, so a recipe is never read from another store.
+ */
+public class BlockScheme extends CompressionScheme
+{
+    AlphaNumericString id = new AlphaNumericString("k");
+    private final BlockStore store;
+    private String storeId;
+
+    /**
+     * @param store Store holding the blocks, or null if the scheme is only used for its name
+     */
+    public BlockScheme(BlockStore store)
+    {
+        this.store = store;
+        this.storeId = store == null ? "" : store.getId();
+    }
+
+    @Override
+    public AlphaNumericString getId()
+    {
+        return id;
+    }
+
+    @Override
+    public AlphaNumericString generateFlags()
+    {
+        return new AlphaNumericString(storeId);
+    }
+
+    @Override
+    public void consumeFlags(String flags)
+    {
+        storeId = flags;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream recipe = new ByteArrayOutputStream();
+        try (OutputStream out = compress(recipe))
+        {
+            out.write(data);
+        }
+        return recipe.toByteArray();
+    }
+
+    @Override
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        try (InputStream in = decompress(new ByteArrayInputStream(data)))
+        {
+            return in.readAllBytes();
+        }
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException
+    {
+        return getStore().write(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException
+    {
+        return getStore().read(in);
+    }
+
+    @Override
+    public long getExpandedSize(Path file) throws IOException
+    { //the recipe records it exactly
+        return BlockStore.getLength(file);
+    }
+
+    /**
+     * Counts another reference to every block of a backup file stored with this scheme, which has been copied
+     */
+    public void retain(Path recipe) throws IOException
+    {
+        getStore().retain(recipe);
+    }
+
+    private BlockStore getStore() throws IOException
+    {
+        if (store == null) throw new IOException("Block store "+storeId+" wasn't given to the scheme");
+        if (!store.getId().equals(storeId)) throw new IOException("Stored in block store "+storeId+", not "+store.getId());
+        return store;
+    }
+}
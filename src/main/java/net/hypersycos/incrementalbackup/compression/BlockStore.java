@@ -0,0 +1,465 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store of blocks shared by every full sequence, kept in backupPath/blocks. Data is cut into blocks
+ * at content-defined boundaries, and each block is stored once under its SHA-256, however many backup files hold it.
+ * A backup file stored with BlockScheme is a recipe of the length and hash of each of its blocks. The store counts
+ * how many times recipes refer to each block, so a block can be deleted once no full sequence holds it.
+ */
+public final class BlockStore
+{
+    static final String storeDirectory = "blocks";
+    private static final String idFile = "id";
+    private static final String referencesFile = "refs";
+    //blocks are written here before being moved into place, and anything left by a crash is deleted on opening
+    private static final String temporaryDirectory = "temp";
+    private static final int magic = 0x424C4B53; //BLKS
+    private static final int hashLength = 32;
+    //blocks average 64KiB, and are never cut shorter than 16KiB or longer than 256KiB
+    public static final int minBlockSize = 16*1024;
+    private static final int maxBlockSize = 256*1024;
+    private static final long boundaryMask = 0xFFFFL << 48;
+    //how a block is stored, in its first byte
+    private static final byte stored = 0;
+    private static final byte deflated = 1;
+    private static final long[] gear = new long[256];
+    static
+    {
+        SplittableRandom random = new SplittableRandom(0x626c6f636b676561L);
+        for (int i = 0; i < gear.length; i++)
+        {
+            gear[i] = random.nextLong();
+        }
+    }
+    //kept apart from HashAlgorithm's hashers, so blocks can be read from a stream which one of them is hashing
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new AssertionError("SHA-256 unavailable");
+        }
+    });
+
+    /**
+     * A block's SHA-256, which is also its name in the store
+     */
+    private record Digest(long a, long b, long c, long d)
+    {
+        static Digest of(byte[] hash)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(hash);
+            return new Digest(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+        }
+
+        static Digest read(DataInput in) throws IOException
+        {
+            return new Digest(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        }
+
+        void write(DataOutput out) throws IOException
+        {
+            out.writeLong(a);
+            out.writeLong(b);
+            out.writeLong(c);
+            out.writeLong(d);
+        }
+
+        String name()
+        {
+            return String.format("%016x%016x%016x%016x", a, b, c, d);
+        }
+    }
+
+    private final Path location;
+    private final String id;
+    private final Map<Digest, Integer> references = new ConcurrentHashMap<>();
+    //blocks whose last reference was released, deleted when the counts are next written
+    private final Set<Digest> unreferenced = ConcurrentHashMap.newKeySet();
+
+    private BlockStore(Path location, String id)
+    {
+        this.location = location;
+        this.id = id;
+    }
+
+    public static Path getLocation(Path backupPath)
+    {
+        return backupPath.resolve(storeDirectory);
+    }
+
+    /**
+     * Opens the store in backupPath, creating it if it doesn't exist, and deletes any block a crash left half written.
+     * The store's counts are only kept right by the backup which opened it, so every BlockScheme reading or writing
+     * that backup's files should be given this store.
+     * @param backupPath Directory containing the journal
+     * @throws IOException Thrown if unable to create the store, or its reference counts can't be read
+     */
+    public static BlockStore open(Path backupPath) throws IOException
+    {
+        Path location = getLocation(backupPath);
+        Files.createDirectories(location.resolve(temporaryDirectory));
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(location.resolve(temporaryDirectory)))
+        {
+            for (Path leftover : leftovers)
+            {
+                Files.deleteIfExists(leftover);
+            }
+        }
+        Path idPath = location.resolve(idFile);
+        String id;
+        if (Files.exists(idPath))
+        {
+            id = Files.readString(idPath).trim();
+        }
+        else
+        {
+            id = String.format("%016x", new SecureRandom().nextLong());
+            Path temp = location.resolve(idFile + ".tmp");
+            Files.writeString(temp, id);
+            Files.move(temp, idPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        BlockStore store = new BlockStore(location, id);
+        Path referencesPath = location.resolve(referencesFile);
+        if (Files.exists(referencesPath))
+        { //losing the counts would let blocks still in use be deleted, so unlike the hash index this can't start empty
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(referencesPath))))
+            {
+                if (in.readInt() != magic) throw new IOException("Not a block reference file: "+referencesPath);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    store.references.put(Digest.read(in), in.readInt());
+                }
+            }
+        }
+        return store;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Wraps a stream so data written to it is cut into blocks, which are added to the store, and the recipe is
+     * written to out. Blocks are cut the same way however the data is written. Closing the returned stream stores
+     * the last block and closes out.
+     */
+    public OutputStream write(OutputStream out)
+    {
+        DataOutputStream recipe = new DataOutputStream(new BufferedOutputStream(out));
+        return new OutputStream()
+        {
+            private final byte[] pending = new byte[maxBlockSize];
+            private int count = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int off, int len) throws IOException
+            {
+                while (len > 0)
+                {
+                    int copied = Math.min(len, pending.length - count);
+                    System.arraycopy(data, off, pending, count, copied);
+                    count += copied;
+                    off += copied;
+                    len -= copied;
+                    if (count == pending.length) cut();
+                }
+            }
+
+            /**
+             * Stores the block at the start of pending, moving whatever follows it to the start
+             */
+            private void cut() throws IOException
+            {
+                int end = findBoundary(pending, count);
+                put(pending, end, recipe);
+                System.arraycopy(pending, end, pending, 0, count - end);
+                count -= end;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed) return;
+                closed = true;
+                try (recipe)
+                {
+                    while (count > 0)
+                    {
+                        cut();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream of a recipe so reading it gives back the data, checking each block against its hash.
+     * Closing the returned stream closes in.
+     */
+    public InputStream read(InputStream in)
+    {
+        DataInputStream recipe = new DataInputStream(new BufferedInputStream(in));
+        return new InputStream()
+        {
+            private byte[] block = new byte[0];
+            private int position = 0;
+
+            /**
+             * Loads the next block once the current one is used up
+             * @return False at the end of the recipe
+             */
+            private boolean next() throws IOException
+            {
+                while (position == block.length)
+                {
+                    int length;
+                    try
+                    {
+                        length = recipe.readInt();
+                    }
+                    catch (EOFException e)
+                    {
+                        return false;
+                    }
+                    block = load(length, Digest.read(recipe));
+                    position = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                return next() ? block[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] data, int off, int len) throws IOException
+            {
+                if (len == 0) return 0;
+                if (!next()) return -1;
+                int copied = Math.min(len, block.length - position);
+                System.arraycopy(block, position, data, off, copied);
+                position += copied;
+                return copied;
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                recipe.close();
+            }
+        };
+    }
+
+    /**
+     * Counts another reference to every block in a recipe, for a backup file copied as stored
+     * @throws IOException Thrown if unable to read the recipe
+     */
+    public void retain(Path recipe) throws IOException
+    {
+        for (Digest digest : readRecipe(recipe))
+        {
+            references.merge(digest, 1, Integer::sum);
+            unreferenced.remove(digest);
+        }
+    }
+
+    /**
+     * Drops the references of recipes which are about to be deleted. Every recipe is read before any count changes,
+     * so a failure leaves the counts as they were. Blocks left unreferenced are deleted by the next write.
+     * @throws IOException Thrown if unable to read a recipe
+     */
+    public void release(Collection<Path> recipes) throws IOException
+    {
+        List<Digest> digests = new ArrayList<>();
+        for (Path recipe : recipes)
+        {
+            digests.addAll(readRecipe(recipe));
+        }
+        for (Digest digest : digests)
+        {
+            Integer count = references.computeIfPresent(digest, (key, value) -> value > 1 ? value - 1 : null);
+            if (count == null) unreferenced.add(digest);
+        }
+    }
+
+    /**
+     * Sums the lengths of a recipe's blocks, without reading them
+     */
+    public static long getLength(Path recipe) throws IOException
+    {
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recipe))))
+        {
+            while (true)
+            {
+                try
+                {
+                    length += in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    return length;
+                }
+                in.skipNBytes(hashLength);
+            }
+        }
+    }
+
+    /**
+     * Writes the reference counts to a temporary file beside them, then moves it into place, and only then deletes
+     * the blocks nothing refers to any more. Should be called before the journal is committed, so the counts are
+     * never lower than the recipes the journal knows of.
+     * @throws IOException Thrown if unable to write the counts or delete a block
+     */
+    public synchronized void write() throws IOException
+    {
+        Path temp = location.resolve(referencesFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+        {
+            out.writeInt(magic);
+            Map<Digest, Integer> snapshot = Map.copyOf(references);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Digest, Integer> entry : snapshot.entrySet())
+            {
+                entry.getKey().write(out);
+                out.writeInt(entry.getValue());
+            }
+        }
+        Files.move(temp, location.resolve(referencesFile), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (Digest digest : List.copyOf(unreferenced))
+        {
+            unreferenced.remove(digest);
+            if (!references.containsKey(digest)) Files.deleteIfExists(getBlock(digest));
+        }
+    }
+
+    /**
+     * Finds the end of the block starting at the start of data, where a rolling hash of the bytes hits the boundary
+     * pattern
+     * @param length Number of bytes of data available
+     * @return Length of the block
+     */
+    private static int findBoundary(byte[] data, int length)
+    {
+        int end = Math.min(length, maxBlockSize);
+        if (end <= minBlockSize) return end;
+        long hash = 0;
+        for (int i = minBlockSize; i < end; i++)
+        {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & boundaryMask) == 0) return i + 1;
+        }
+        return end;
+    }
+
+    private Path getBlock(Digest digest)
+    {
+        String name = digest.name();
+        return location.resolve(name.substring(0, 2)).resolve(name);
+    }
+
+    /**
+     * Adds a block to the store, writing it only if it isn't there already, and adds it to a recipe
+     */
+    private void put(byte[] data, int length, DataOutputStream recipe) throws IOException
+    {
+        byte[] block = Arrays.copyOf(data, length);
+        Digest digest = Digest.of(sha256(block));
+        Path path = getBlock(digest);
+        if (!Files.exists(path))
+        {
+            CompressionScheme compression = CompressionSelector.select(block);
+            byte[] compressed = compression.compress(block);
+            Files.createDirectories(path.getParent());
+            //written apart and moved into place, so a block which exists is always whole
+            Path temp = Files.createTempFile(location.resolve(temporaryDirectory), "", ".tmp");
+            try
+            {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp)))
+                {
+                    out.write(compression instanceof NoCompress ? stored : deflated);
+                    out.write(compressed);
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temp);
+            }
+        }
+        references.merge(digest, 1, Integer::sum);
+        unreferenced.remove(digest);
+        recipe.writeInt(length);
+        digest.write(recipe);
+    }
+
+    private static byte[] sha256(byte[] block)
+    {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest.digest(block);
+    }
+
+    private byte[] load(int length, Digest digest) throws IOException
+    {
+        Path path = getBlock(digest);
+        byte[] data = Files.readAllBytes(path);
+        byte[] block = switch (data.length == 0 ? -1 : data[0])
+                {
+                    case stored -> Arrays.copyOfRange(data, 1, data.length);
+                    case deflated -> Zlib.decompress(Arrays.copyOfRange(data, 1, data.length));
+                    default -> throw new IOException("Unknown block type in "+path);
+                };
+        if (block.length != length || !Digest.of(sha256(block)).equals(digest))
+        {
+            throw new IOException("Block doesn't match its hash: "+path);
+        }
+        return block;
+    }
+
+    private static List<Digest> readRecipe(Path recipe) throws IOException
+    {
+        List<Digest> digests = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(recipe))))
+        {
+            while (true)
+            {
+                try
+                {
+                    in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    return digests;
+                }
+                digests.add(Digest.read(in));
+            }
+        }
+    }
+}
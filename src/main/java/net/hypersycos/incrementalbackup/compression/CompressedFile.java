@@ -0,0 +1,43 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A backup file with the scheme it's stored with, as resolved from its name by the backup holding it
+ */
+public record CompressedFile(Path path, CompressionScheme compression)
+{
+    public byte[] read() throws IOException
+    {
+        return compression.decompress(Files.readAllBytes(path));
+    }
+
+    /**
+     * Reads a file stored against the previous version of the file it's a backup of
+     * @param previous Array holding the previous version
+     * @param length Length of the previous version, from the start of the array
+     */
+    public byte[] read(byte[] previous, int length) throws IOException
+    {
+        return compression.decompress(Files.readAllBytes(path), previous, length);
+    }
+
+    public InputStream open() throws IOException
+    {
+        return compression.decompress(new BufferedInputStream(Files.newInputStream(path)));
+    }
+
+    public InputStream open(byte[] previous, int length) throws IOException
+    {
+        return compression.decompress(new BufferedInputStream(Files.newInputStream(path)), previous, length);
+    }
+
+    public long getExpandedSize() throws IOException
+    {
+        return compression.getExpandedSize(path);
+    }
+}
@@ -2,7 +2,13 @@ package net.hypersycos.incrementalbackup.compression;
 
 import net.hypersycos.incrementalbackup.util.AlphaNumericString;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 public abstract class CompressionScheme
 {
@@ -11,10 +17,99 @@ public abstract class CompressionScheme
      */
     public abstract AlphaNumericString getId();
     public abstract AlphaNumericString generateFlags();
-    public abstract void consumeFlags();
+    /**
+     * Reads back the flags generateFlags wrote to a backup file's name
+     */
+    public abstract void consumeFlags(String flags);
     public abstract byte[] compress(byte[] data) throws IOException;
     public abstract byte[] decompress(byte[] data) throws IOException;
 
+    /**
+     * How much of the end of the file's previous version the data is compressed against, or 0 if the scheme doesn't
+     * use it. Data from a scheme which does can only be compressed or decompressed given the previous version.
+     */
+    public int getPreviousWindow()
+    {
+        return 0;
+    }
+
+    /**
+     * Compresses data which follows a previous version of the file. Schemes without a previous window ignore it.
+     * @param previous Array holding the previous version
+     * @param length Length of the previous version, from the start of the array
+     */
+    public byte[] compress(byte[] data, byte[] previous, int length) throws IOException
+    {
+        return compress(data);
+    }
+
+    /**
+     * Decompresses data given the previous version it was compressed against
+     * @param previous Array holding the previous version, or at least the end of it within the previous window
+     * @param length Length of the previous version, from the start of the array
+     */
+    public byte[] decompress(byte[] data, byte[] previous, int length) throws IOException
+    {
+        return decompress(data);
+    }
+
+    /**
+     * Streaming counterpart of decompress given the previous version
+     */
+    public InputStream decompress(InputStream in, byte[] previous, int length) throws IOException
+    {
+        return decompress(in);
+    }
+
+    /**
+     * Wraps a stream so data written to it is compressed, for data too big to hold in memory. Closing the returned
+     * stream finishes the data and closes out. The default collects everything written and compresses it whole on
+     * close, so schemes which can compress as they go should override it.
+     */
+    public OutputStream compress(OutputStream out) throws IOException
+    {
+        return new ByteArrayOutputStream()
+        {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (closed) return;
+                closed = true;
+                try (out)
+                {
+                    out.write(CompressionScheme.this.compress(toByteArray()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream of compressed data so reading it gives the data back. Closing the returned stream closes in.
+     * The default reads and decompresses everything at once, so schemes which can decompress as they go should
+     * override it.
+     */
+    public InputStream decompress(InputStream in) throws IOException
+    {
+        try (in)
+        {
+            return new ByteArrayInputStream(decompress(in.readAllBytes()));
+        }
+    }
+
+    //compressed backup files are assumed to decompress to about this many times their stored size
+    private static final int expansionEstimate = 4;
+
+    /**
+     * Estimates how big a backup file stored with this scheme is once decompressed
+     * @throws IOException Thrown if unable to read the size of the file
+     */
+    public long getExpandedSize(Path file) throws IOException
+    {
+        return Files.size(file) * expansionEstimate;
+    }
+
     @Override
     public boolean equals(Object obj)
     {
@@ -29,10 +124,22 @@ public abstract class CompressionScheme
 
     public static CompressionScheme getScheme(String id, String flags)
     {
-        return switch (id)
+        return getScheme(id, flags, null);
+    }
+
+    /**
+     * @param blocks Store the backup files being parsed keep their blocks in, or null if they're only being listed
+     */
+    public static CompressionScheme getScheme(String id, String flags, BlockStore blocks)
+    {
+        CompressionScheme scheme = switch (id)
                 {
                     default -> new NoCompress();
                     case "z" -> new ZipScheme();
+                    case "d" -> new DictionaryScheme();
+                    case "k" -> new BlockScheme(blocks);
                 };
+        scheme.consumeFlags(flags);
+        return scheme;
     }
 }
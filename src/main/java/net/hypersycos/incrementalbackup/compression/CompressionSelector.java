@@ -0,0 +1,106 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * Picks how to store a payload from a sample of it, so time isn't spent deflating data which is already compressed,
+ * such as chunk data, images or jars, and the effort of the smallest level goes to data which shrinks well.
+ * The sample's byte entropy rules out data which can't compress without deflating anything; otherwise the sample is
+ * deflated at the fastest level, and the ratio chooses between storing, the fastest level and the smallest.
+ */
+public final class CompressionSelector
+{
+    //payloads up to this size are sampled whole, larger ones as evenly spaced slices adding up to it
+    private static final int sampleSize = 64*1024;
+    private static final int sliceSize = 4*1024;
+    //bits per byte above which the sample is taken to be compressed already
+    private static final double storeEntropy = 7.9;
+    //ratios of the sample's fastest deflate to its length
+    private static final double storeRatio = 0.95;
+    private static final double fastRatio = 0.6;
+    //the smallest level costs several times the default for a few percent, so larger payloads get the default
+    private static final int maxLevelSize = 1024*1024;
+
+    private CompressionSelector(){}
+
+    /**
+     * @return NoCompress if the payload wouldn't shrink, the fastest ZipScheme if it only shrinks a little, or the
+     * smallest ZipScheme if it shrinks well (the default level if it's also large)
+     */
+    public static CompressionScheme select(byte[] data)
+    {
+        return select(sample(data), data.length);
+    }
+
+    /**
+     * Chooses for a payload too big to read whole, sampling the file the same way as an array
+     * @throws IOException Thrown if unable to read the file
+     */
+    public static CompressionScheme select(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file))
+        {
+            long length = channel.size();
+            int slices = length <= sampleSize ? 1 : sampleSize / sliceSize;
+            int slice = length <= sampleSize ? (int) length : sliceSize;
+            long stride = slices == 1 ? 0 : (length - sliceSize) / (slices - 1);
+            ByteBuffer sample = ByteBuffer.allocate(slices * slice);
+            for (int i = 0; i < slices; i++)
+            {
+                sample.limit((i + 1) * slice);
+                while (sample.hasRemaining())
+                {
+                    if (channel.read(sample, i * stride + sample.position() - i * slice) < 0) break;
+                }
+            }
+            return select(sample.array(), length);
+        }
+    }
+
+    private static CompressionScheme select(byte[] sample, long length)
+    {
+        if (length == 0) return new NoCompress();
+        if (entropy(sample) >= storeEntropy) return new NoCompress();
+        double ratio = (double) Zlib.compress(sample, 0, sample.length, Deflater.BEST_SPEED, null).length / sample.length;
+        if (ratio >= storeRatio) return new NoCompress();
+        if (ratio >= fastRatio) return new ZipScheme(Deflater.BEST_SPEED);
+        return new ZipScheme(length <= maxLevelSize ? Deflater.BEST_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static byte[] sample(byte[] data)
+    {
+        if (data.length <= sampleSize) return data;
+        int slices = sampleSize / sliceSize;
+        long stride = (data.length - sliceSize) / (slices - 1);
+        byte[] sample = new byte[sampleSize];
+        for (int i = 0; i < slices; i++)
+        {
+            System.arraycopy(data, (int) (i * stride), sample, i * sliceSize, sliceSize);
+        }
+        return sample;
+    }
+
+    /**
+     * Shannon entropy of the bytes, in bits per byte
+     */
+    private static double entropy(byte[] data)
+    {
+        int[] counts = new int[256];
+        for (byte b : data)
+        {
+            counts[b & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts)
+        {
+            if (count == 0) continue;
+            double p = (double) count / data.length;
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,103 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import net.hypersycos.incrementalbackup.util.AlphaNumericString;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates data with the end of the file's previous version as a preset dictionary, so a difference which repeats
+ * the previous version's contents compresses far better than it would on its own. The dictionary isn't stored with
+ * the data, so the previous version has to be given to compress and decompress, and the ones without it throw. The
+ * flags record where the dictionary comes from, then the level as ZipScheme records it.
+ */
+public class DictionaryScheme extends CompressionScheme
+{
+    //deflate can't refer back further than this, so only the end of the previous version is used
+    public static final int windowSize = 32*1024;
+    //the dictionary is the end of the version the data follows
+    public static final String previousVersion = "p";
+
+    AlphaNumericString id = new AlphaNumericString("d");
+    private String source = previousVersion;
+    private int level;
+
+    public DictionaryScheme()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level Deflate level from 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION
+     */
+    public DictionaryScheme(int level)
+    {
+        this.level = level;
+    }
+
+    @Override
+    public AlphaNumericString getId()
+    {
+        return id;
+    }
+
+    @Override
+    public AlphaNumericString generateFlags()
+    {
+        return new AlphaNumericString(source + (level == Deflater.DEFAULT_COMPRESSION ? "" : Integer.toString(level)));
+    }
+
+    @Override
+    public void consumeFlags(String flags)
+    {
+        source = flags.isEmpty() ? previousVersion : flags.substring(0, 1);
+        level = ZipScheme.parseLevel(flags.isEmpty() ? "" : flags.substring(1));
+    }
+
+    @Override
+    public int getPreviousWindow()
+    {
+        return windowSize;
+    }
+
+    @Override
+    public byte[] compress(byte[] data)
+    {
+        throw new UnsupportedOperationException("Dictionary compression needs the previous version");
+    }
+
+    @Override
+    public byte[] decompress(byte[] data)
+    {
+        throw new UnsupportedOperationException("Dictionary compression needs the previous version");
+    }
+
+    @Override
+    public byte[] compress(byte[] data, byte[] previous, int length)
+    {
+        return Zlib.compress(data, 0, data.length, level, getDictionary(previous, length));
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, byte[] previous, int length) throws IOException
+    {
+        return Zlib.decompress(data, getDictionary(previous, length));
+    }
+
+    @Override
+    public InputStream decompress(InputStream in, byte[] previous, int length) throws IOException
+    {
+        try (in)
+        {
+            return new ByteArrayInputStream(decompress(in.readAllBytes(), previous, length));
+        }
+    }
+
+    private static byte[] getDictionary(byte[] previous, int length)
+    {
+        return Arrays.copyOfRange(previous, Math.max(0, length - windowSize), length);
+    }
+}
@@ -2,6 +2,12 @@ package net.hypersycos.incrementalbackup.compression;
 
 import net.hypersycos.incrementalbackup.util.AlphaNumericString;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class NoCompress extends CompressionScheme
 {
     static AlphaNumericString empty = new AlphaNumericString("");
@@ -19,7 +25,7 @@ public class NoCompress extends CompressionScheme
     }
 
     @Override
-    public void consumeFlags() {}
+    public void consumeFlags(String flags) {}
 
     @Override
     public byte[] compress(byte[] data)
@@ -32,4 +38,22 @@ public class NoCompress extends CompressionScheme
     {
         return data;
     }
+
+    @Override
+    public OutputStream compress(OutputStream out)
+    {
+        return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in)
+    {
+        return in;
+    }
+
+    @Override
+    public long getExpandedSize(Path file) throws IOException
+    {
+        return Files.size(file);
+    }
 }
@@ -2,50 +2,121 @@ package net.hypersycos.incrementalbackup.compression;
 
 import net.hypersycos.incrementalbackup.util.AlphaNumericString;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.*;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class ZipScheme extends CompressionScheme
 {
+    private static final int streamBuffer = 64*1024;
     AlphaNumericString id = new AlphaNumericString("z");
+    private int level;
+
+    public ZipScheme()
+    {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level Deflate level from 1 (fastest) to 9 (smallest), or Deflater.DEFAULT_COMPRESSION
+     */
+    public ZipScheme(int level)
+    {
+        this.level = level;
+    }
+
+    public int getLevel()
+    {
+        return level;
+    }
+
     @Override
     public AlphaNumericString getId()
     {
         return id;
     }
 
+    /**
+     * The level, or nothing for the default level, so older backups read the same
+     */
     @Override
     public AlphaNumericString generateFlags()
     {
-        return new AlphaNumericString("");
+        return new AlphaNumericString(level == Deflater.DEFAULT_COMPRESSION ? "" : Integer.toString(level));
+    }
+
+    @Override
+    public void consumeFlags(String flags)
+    {
+        level = parseLevel(flags);
+    }
+
+    /**
+     * Reads a level written by generateFlags, falling back to the default level for anything else
+     */
+    static int parseLevel(String flags)
+    {
+        return flags.length() == 1 && Character.isDigit(flags.charAt(0)) ? flags.charAt(0) - '0' : Deflater.DEFAULT_COMPRESSION;
     }
 
     @Override
-    public void consumeFlags()
+    public byte[] compress(byte[] data)
     {
+        return Zlib.compress(data, 0, data.length, level, null);
+    }
 
+    @Override
+    public byte[] decompress(byte[] data) throws IOException
+    {
+        return Zlib.decompress(data);
     }
 
+    /**
+     * Deflates as it's written, with its own Deflater, which is ended when the stream is closed
+     */
     @Override
-    public byte[] compress(byte[] data) throws IOException
+    public OutputStream compress(OutputStream out)
     {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try(DeflaterOutputStream dos = new DeflaterOutputStream(baos))
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, streamBuffer)
         {
-            dos.write(data);
-        }
-        return baos.toByteArray();
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    deflater.end();
+                }
+            }
+        };
     }
 
     @Override
-    public byte[] decompress(byte[] data) throws IOException
+    public InputStream decompress(InputStream in)
     {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        try(InflaterInputStream zis = new InflaterInputStream(bais))
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, streamBuffer)
         {
-            return zis.readAllBytes();
-        }
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    inflater.end();
+                }
+            }
+        };
     }
 }
@@ -0,0 +1,155 @@
+package net.hypersycos.incrementalbackup.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compresses and decompresses zlib data with a Deflater, Inflater and output buffer kept by each thread and reset
+ * between calls, rather than new streams with their own native zlib state every time. Output is the same as
+ * DeflaterOutputStream's with the default level.
+ */
+public final class Zlib
+{
+    //buffers grown past this are dropped after use, so one huge file doesn't stay pinned to a thread
+    private static final int maxKeptBuffer = 16*1024*1024;
+    private static final int maxArray = Integer.MAX_VALUE - 8;
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[64*1024]);
+
+    private Zlib(){}
+
+    public static byte[] compress(byte[] data)
+    {
+        return compress(data, 0, data.length);
+    }
+
+    public static byte[] compress(byte[] data, int offset, int length)
+    {
+        return compress(data, offset, length, null);
+    }
+
+    /**
+     * @param dictionary Preset dictionary, which has to be given again to decompress. Null or empty for none.
+     */
+    public static byte[] compress(byte[] data, int offset, int length, byte[] dictionary)
+    {
+        return compress(data, offset, length, Deflater.DEFAULT_COMPRESSION, dictionary);
+    }
+
+    /**
+     * @param level Deflate level from 0 to 9, or Deflater.DEFAULT_COMPRESSION
+     * @param dictionary Preset dictionary, which has to be given again to decompress. Null or empty for none.
+     */
+    public static byte[] compress(byte[] data, int offset, int length, int level, byte[] dictionary)
+    {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        if (dictionary != null && dictionary.length > 0) deflater.setDictionary(dictionary);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        //zlib's worst case is a little over the input, so one buffer of that size is enough
+        byte[] buffer = getBuffer((int) Math.min(length + length / 1000L + 64, maxArray));
+        int written = 0;
+        while (!deflater.finished())
+        {
+            if (written == buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length + buffer.length / 2L, maxArray));
+            }
+            written += deflater.deflate(buffer, written, buffer.length - written);
+        }
+        return finish(buffer, written);
+    }
+
+    /**
+     * @throws EOFException Thrown if the data ends before the end of the zlib stream
+     * @throws ZipException Thrown if the data isn't valid zlib
+     */
+    public static byte[] decompress(byte[] data) throws IOException
+    {
+        return decompress(data, null);
+    }
+
+    /**
+     * @param dictionary The preset dictionary the data was compressed with, if any
+     * @throws EOFException Thrown if the data ends before the end of the zlib stream
+     * @throws ZipException Thrown if the data isn't valid zlib, or needs a dictionary it wasn't given
+     */
+    public static byte[] decompress(byte[] data, byte[] dictionary) throws IOException
+    {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] buffer = getBuffer((int) Math.min(data.length * 4L, maxArray));
+        int written = 0;
+        try
+        {
+            while (!inflater.finished())
+            {
+                if (written == buffer.length)
+                {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(buffer.length * 2L, maxArray));
+                }
+                int inflated = inflater.inflate(buffer, written, buffer.length - written);
+                if (inflated == 0 && inflater.needsDictionary())
+                {
+                    if (dictionary == null || dictionary.length == 0) throw new ZipException("Missing zlib dictionary");
+                    setDictionary(inflater, dictionary);
+                    continue;
+                }
+                if (inflated == 0 && !inflater.finished() && inflater.needsInput())
+                {
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                written += inflated;
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new ZipException(e.getMessage());
+        }
+        return finish(buffer, written);
+    }
+
+    private static void setDictionary(Inflater inflater, byte[] dictionary) throws ZipException
+    {
+        try
+        {
+            inflater.setDictionary(dictionary);
+        }
+        catch (IllegalArgumentException e)
+        { //the dictionary's checksum doesn't match the one the data was compressed with
+            throw new ZipException("Wrong zlib dictionary");
+        }
+    }
+
+    /**
+     * Returns this thread's buffer, grown to at least length if needed
+     */
+    private static byte[] getBuffer(int length)
+    {
+        byte[] buffer = buffers.get();
+        if (buffer.length < length)
+        {
+            buffer = new byte[length];
+            if (length <= maxKeptBuffer) buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static byte[] finish(byte[] buffer, int length)
+    {
+        if (buffer.length > buffers.get().length && buffer.length <= maxKeptBuffer)
+        {
+            buffers.set(buffer);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,263 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import net.hypersycos.incrementalbackup.util.HashAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of every backup file in one full sequence, keyed by the path of the original file relative to the
+ * backed up directory, then ordered by minor version. Loaded from the full sequence's manifest, or built with a single
+ * walk of backupPath/fullSequence if it has none, and kept up to date as backup files are written, so finding a
+ * file's chain never lists a directory or parses a name.
+ */
+public class BackupIndex
+{
+    /**
+     * A single backup file
+     * @param details The version, compression and removal details parsed from its name
+     * @param file Location of the backup file
+     * @param length Length of the backup file as stored
+     * @param checksum CRC32C of the backup file as stored, or 0 if it was indexed by walking the tree
+     */
+    public record Entry(BackupPath details, Path file, long length, int checksum){}
+
+    //a removal marker sorts before a copy with the same minor version, so a file re-created straight away survives it
+    private static final Comparator<Entry> versionOrder = Comparator.comparingDouble(
+            (entry) -> entry.details().getMinorVersion() - (entry.details().isRemoved() ? 0.5 : 0));
+
+    private final Path root;
+    private final int fullSequence;
+    private final Map<Path, List<Entry>> entries = new ConcurrentHashMap<>();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private Manifest manifest;
+
+    private BackupIndex(Path root, int fullSequence)
+    {
+        this.root = root;
+        this.fullSequence = fullSequence;
+    }
+
+    /**
+     * Builds the index for a full sequence from its manifest. If it has no readable manifest, its directory is walked
+     * once and a new manifest is written from what was found.
+     * @param backupPath Root of the backup
+     * @param fullSequence The full sequence to index
+     * @return The index. Empty if the full sequence has no directory yet.
+     */
+    public static BackupIndex load(Path backupPath, int fullSequence)
+    {
+        BackupIndex index = new BackupIndex(backupPath.resolve(String.valueOf(fullSequence)), fullSequence);
+        index.manifest = Manifest.read(backupPath, fullSequence, new Manifest.Reader()
+        {
+            @Override
+            public void directory(Path relativePath)
+            {
+                index.directories.add(relativePath);
+            }
+
+            @Override
+            public void version(Path relativePath, BackupPath details, long length, int checksum)
+            {
+                index.put(relativePath, details, length, checksum);
+            }
+        });
+        if (index.manifest == null)
+        {
+            index.manifest = Manifest.create(backupPath, fullSequence);
+            if (index.root.toFile().isDirectory())
+            {
+                index.scan(index.root, Paths.get(""));
+            }
+        }
+        for (List<Entry> versions : index.entries.values())
+        {
+            versions.sort(versionOrder);
+        }
+        return index;
+    }
+
+    /**
+     * Creates an empty index for a full sequence without reading anything, whose manifest replaces any existing one
+     * when first committed
+     * @param backupPath Root of the backup
+     * @param fullSequence The full sequence to index
+     */
+    public static BackupIndex create(Path backupPath, int fullSequence)
+    {
+        BackupIndex index = new BackupIndex(backupPath.resolve(String.valueOf(fullSequence)), fullSequence);
+        index.manifest = Manifest.create(backupPath, fullSequence);
+        return index;
+    }
+
+    private void scan(Path dir, Path relativeDir)
+    {
+        addDirectory(relativeDir);
+        for (File file : Objects.requireNonNull(dir.toFile().listFiles()))
+        {
+            if (file.isDirectory())
+            {
+                scan(file.toPath(), relativeDir.resolve(file.getName()));
+            }
+            else
+            {
+                BackupPath details;
+                try
+                {
+                    details = new BackupPath(file.getName());
+                }
+                catch (NumberFormatException | IndexOutOfBoundsException e)
+                {
+                    continue;
+                }
+                Path relativePath = relativeDir.resolve(details.getName());
+                long length = file.length();
+                entries.computeIfAbsent(relativePath, (key) -> new ArrayList<>())
+                        .add(new Entry(details, file.toPath(), length, 0));
+                manifest.addVersion(relativePath, details, length, 0);
+            }
+        }
+    }
+
+    public int getFullSequence()
+    {
+        return fullSequence;
+    }
+
+    /**
+     * Records a newly written backup file, adding it to the manifest on the next commit
+     * @param relativePath Path of the original file, relative to the backed up directory
+     * @param details Details of the backup file, as used for its name
+     * @param length Length of the backup file as stored
+     * @param checksum CRC32C of the backup file as stored
+     */
+    public void add(Path relativePath, BackupPath details, long length, int checksum)
+    {
+        manifest.addVersion(relativePath, details, length, checksum);
+        put(relativePath, details, length, checksum);
+    }
+
+    private void put(Path relativePath, BackupPath details, long length, int checksum)
+    {
+        Entry entry = new Entry(details, getBackupParent(relativePath).resolve(details.toName()), length, checksum);
+        List<Entry> versions = entries.computeIfAbsent(relativePath, (key) -> new ArrayList<>());
+        synchronized (versions)
+        { //a file written again with the same name replaces the old entry
+            versions.removeIf((existing) -> existing.file().equals(entry.file()));
+            versions.add(entry);
+            versions.sort(versionOrder);
+        }
+    }
+
+    /**
+     * Records a newly created backup directory, so it can be restored even if it never holds a file
+     * @param relativePath Path of the original directory, relative to the backed up directory
+     */
+    public void addDirectory(Path relativePath)
+    {
+        if (directories.add(relativePath))
+        {
+            manifest.addDirectory(relativePath);
+        }
+    }
+
+    /**
+     * Writes every backup file and directory recorded since the last commit to the manifest
+     * @throws IOException Thrown if unable to write the manifest
+     */
+    public void commit() throws IOException
+    {
+        manifest.commit();
+    }
+
+    /**
+     * Returns the directory backups of a file are stored in
+     * @param relativePath Path of the original file, relative to the backed up directory
+     */
+    public Path getBackupParent(Path relativePath)
+    {
+        Path parent = relativePath.getParent();
+        return parent == null ? root : root.resolve(parent);
+    }
+
+    /**
+     * Returns every relative path with at least one backup file in this full sequence
+     */
+    public Set<Path> getPaths()
+    {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Returns every directory, relative to the backed up directory, which has been backed up in this full sequence
+     */
+    public Set<Path> getDirectories()
+    {
+        return Collections.unmodifiableSet(directories);
+    }
+
+    /**
+     * Returns every backup file of a file in version order, including removal markers
+     * @param relativePath Path of the original file, relative to the backed up directory
+     * @param maxMinor The latest minor version to include
+     */
+    public List<Entry> getVersions(Path relativePath, int maxMinor)
+    {
+        List<Entry> versions = entries.get(relativePath);
+        if (versions == null) return List.of();
+        List<Entry> toReturn = new ArrayList<>();
+        synchronized (versions)
+        {
+            for (Entry entry : versions)
+            {
+                if (entry.details().getMinorVersion() <= maxMinor) toReturn.add(entry);
+            }
+        }
+        return toReturn;
+    }
+
+    /**
+     * Returns the backup files needed to rebuild a file, from its newest base copy to its newest delta
+     * @param relativePath Path of the original file, relative to the backed up directory
+     * @param maxMinor The latest minor version to include
+     * @return The chain in order. Empty if the file had no backup, or was removed, at maxMinor.
+     */
+    public List<Path> getChain(Path relativePath, int maxMinor)
+    {
+        List<Path> chain = new ArrayList<>();
+        for (Entry entry : getVersions(relativePath, maxMinor))
+        {
+            if (entry.details().isRemoved())
+            {
+                chain.clear();
+            }
+            else
+            {
+                chain.add(entry.file());
+            }
+        }
+        return chain;
+    }
+
+    /**
+     * Returns the checksum recorded for backup data
+     */
+    public static int checksum(byte[] data)
+    {
+        return ByteBuffer.wrap(HashAlgorithm.CRC32C.hash(data)).getInt();
+    }
+
+    /**
+     * Returns the checksum recorded for a backup file, streaming it from disk
+     * @throws IOException Thrown if unable to read file
+     */
+    public static int checksum(Path file) throws IOException
+    {
+        return ByteBuffer.wrap(HashAlgorithm.CRC32C.hash(file)).getInt();
+    }
+}
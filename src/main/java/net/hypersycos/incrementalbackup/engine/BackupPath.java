@@ -1,5 +1,6 @@
 package net.hypersycos.incrementalbackup.engine;
 
+import net.hypersycos.incrementalbackup.compression.BlockStore;
 import net.hypersycos.incrementalbackup.compression.CompressionScheme;
 import net.hypersycos.incrementalbackup.compression.NoCompress;
 
@@ -42,6 +43,17 @@ public class BackupPath
      * @throws IndexOutOfBoundsException Thrown if file does not have at least three .s
      */
     public BackupPath(String fileName) throws NumberFormatException, IndexOutOfBoundsException
+    {
+        this(fileName, null);
+    }
+
+    /**
+     * Converts filename to details, giving a BlockScheme the store its blocks are in
+     * @param blocks The backup's block store, or null if it has none
+     * @throws NumberFormatException Thrown if characters up to first . are not an integer
+     * @throws IndexOutOfBoundsException Thrown if file does not have at least three .s
+     */
+    public BackupPath(String fileName, BlockStore blocks) throws NumberFormatException, IndexOutOfBoundsException
     {
         int firstDot = fileName.indexOf(".");
         minorVersion = Integer.parseInt(fileName.substring(0,firstDot));
@@ -56,7 +68,7 @@ public class BackupPath
             int dash = fileName.indexOf("-");
             String id = fileName.substring(firstDot+1,dash);
             String flags = fileName.substring(dash+1,nextDot);
-            compression = CompressionScheme.getScheme(id, flags);
+            compression = CompressionScheme.getScheme(id, flags, blocks);
         }
         name = fileName.substring(nextDot+1);
     }
@@ -69,6 +81,19 @@ public class BackupPath
         this.compression = new NoCompress();
     }
 
+    /**
+     * Rebuilds details from the fields recorded in a manifest
+     * @param compressionId Id of the compression scheme. Ignored if removed.
+     * @param flags Flags of the compression scheme. Ignored if removed.
+     */
+    public BackupPath(int minorVersion, String name, boolean isRemoved, String compressionId, String flags)
+    {
+        this.minorVersion = minorVersion;
+        this.name = name;
+        this.isRemoved = isRemoved;
+        this.compression = isRemoved ? new NoCompress() : CompressionScheme.getScheme(compressionId, flags);
+    }
+
     public BackupPath(){}
 
     public String toName()
@@ -0,0 +1,72 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The stat details of a tracked file, as recorded in the journal. Used to skip files which haven't been touched
+ * since the last backup without opening them.
+ * @param size Length of the file in bytes
+ * @param lastModified Last modified time, at the file system's full precision
+ * @param fileKey String form of the file's key (e.g. device and inode), or an empty string if unsupported
+ * @param racy Whether the file was modified so shortly before it was read that a later write could leave the same
+ * size and modified time, in which case the metadata can't show the file is unchanged (git's "racily clean" rule)
+ */
+public record FileMetadata(long size, FileTime lastModified, String fileKey, boolean racy)
+{
+    private static final char separator = '\t';
+    //modified times this close to when the file was read may not change on the next write. Covers file systems
+    //storing times to the second or two, and some clock skew between the file system and this machine.
+    private static final Duration racyWindow = Duration.ofSeconds(2);
+
+    /**
+     * Reads the metadata of a file, using a single stat
+     * @param path File to read
+     * @throws IOException Thrown if unable to read the file's attributes
+     */
+    public static FileMetadata of(Path path) throws IOException
+    {
+        Instant read = Instant.now();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        FileTime modified = attributes.lastModifiedTime();
+        boolean racy = modified.toInstant().compareTo(read.minus(racyWindow)) >= 0;
+        return new FileMetadata(attributes.size(), modified, key == null ? "" : key.toString(), racy);
+    }
+
+    /**
+     * Whether a file with this metadata can be skipped as unchanged since the metadata was recorded
+     * @param recorded Metadata recorded at the last backup. May be null.
+     */
+    public boolean isUnchangedSince(FileMetadata recorded)
+    {
+        return recorded != null && !recorded.racy() && equals(recorded);
+    }
+
+    /**
+     * Parses a line of a text journal, as written before the journal was binary. The path goes last, so it may
+     * contain the separator. Lines written before metadata was recorded only contain a path. Their modified times
+     * are only to the millisecond, so they're read as racy.
+     * @param line Journal line
+     * @return The tracked path, and its metadata (null if the line has none)
+     * @throws NumberFormatException Thrown if the size or modified time are not numbers
+     */
+    static JournalEntry fromJournalLine(String line) throws NumberFormatException
+    {
+        String[] parts = line.split(String.valueOf(separator), 4);
+        if (parts.length < 4)
+        {
+            return new JournalEntry(Paths.get(line), null);
+        }
+        FileMetadata metadata = new FileMetadata(Long.parseLong(parts[0]), FileTime.fromMillis(Long.parseLong(parts[1])), parts[2], true);
+        return new JournalEntry(Paths.get(parts[3]), metadata);
+    }
+
+    record JournalEntry(Path path, FileMetadata metadata){}
+}
@@ -0,0 +1,145 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import net.hypersycos.incrementalbackup.util.HashAlgorithm;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the newest backed up version of every tracked file, stored next to the journal.
+ * Lets a backup tell a file is unchanged by hashing the live copy, without rebuilding the old version from its chain.
+ */
+public class HashIndex
+{
+    static final String indexFile = "hashes";
+    private static final int magic = 0x48494458; //HIDX
+
+    /**
+     * Details of the newest version of a file
+     * @param length Length of the reconstructed file in bytes
+     * @param hash Hash of the reconstructed file
+     */
+    public record Entry(long length, byte[] hash)
+    {
+        public boolean matches(long length, byte[] hash)
+        {
+            return this.length == length && Arrays.equals(this.hash, hash);
+        }
+    }
+
+    private final Path location;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private HashAlgorithm algorithm;
+
+    /**
+     * Loads the index stored in backupPath. A missing or unreadable index, or one using a different algorithm,
+     * is treated as empty.
+     * @param backupPath Directory containing the journal
+     * @param algorithm Hash function to index files with
+     */
+    public HashIndex(Path backupPath, HashAlgorithm algorithm)
+    {
+        this.location = backupPath.resolve(indexFile);
+        this.algorithm = algorithm;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location.toFile()))))
+        {
+            if (in.readInt() != magic || !in.readUTF().equals(algorithm.name())) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Path path = Paths.get(in.readUTF());
+                long length = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                entries.put(path, new Entry(length, hash));
+            }
+        }
+        catch (IOException e)
+        {
+            //index is only an optimisation, so start again from empty
+            entries.clear();
+        }
+    }
+
+    public Entry get(Path path)
+    {
+        return entries.get(path);
+    }
+
+    public HashAlgorithm getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    /**
+     * Changes the hash function, discarding every entry hashed with the old one
+     */
+    public synchronized void setAlgorithm(HashAlgorithm algorithm)
+    {
+        if (this.algorithm == algorithm) return;
+        this.algorithm = algorithm;
+        entries.clear();
+    }
+
+    /**
+     * Checks whether data is the same as the newest backed up version of a file
+     * @param path path to file
+     * @param data The file's current contents
+     * @return True if the index has an entry for path with the same length and hash
+     */
+    public boolean matches(Path path, byte[] data)
+    {
+        Entry entry = entries.get(path);
+        return entry != null && entry.matches(data.length, algorithm.hash(data));
+    }
+
+    public void put(Path path, byte[] data)
+    {
+        put(path, data.length, algorithm.hash(data));
+    }
+
+    public void put(Path path, long length, byte[] hash)
+    {
+        entries.put(path, new Entry(length, hash));
+    }
+
+    public void remove(Path path)
+    {
+        entries.remove(path);
+    }
+
+    public void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Writes the index to a temporary file beside it, then moves it into place
+     * @throws IOException Thrown if unable to write or replace the index
+     */
+    public void write() throws IOException
+    {
+        Path temp = location.resolveSibling(indexFile + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()))))
+        {
+            out.writeInt(magic);
+            out.writeUTF(algorithm.name());
+            Map<Path, Entry> snapshot = Map.copyOf(entries);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<Path, Entry> entry : snapshot.entrySet())
+            {
+                out.writeUTF(entry.getKey().toString());
+                out.writeLong(entry.getValue().length());
+                out.writeByte(entry.getValue().hash().length);
+                out.write(entry.getValue().hash());
+            }
+        }
+        Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,86 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides which entries of the backed up directory are ignored. Everything is resolved against the directory once,
+ * so matching an entry is a lookup on its relative path and never touches the file system.
+ * An ignored directory is never listed, so its whole subtree is skipped.
+ */
+public class IgnoreMatcher
+{
+    private final Path directory;
+    private final Set<Path> exact = new HashSet<>();
+    private final List<PathMatcher> patterns = new ArrayList<>();
+
+    /**
+     * @param directory Directory being backed up
+     * @param paths Files or directories to ignore. Relative paths are resolved against directory.
+     */
+    public IgnoreMatcher(Path directory, Set<Path> paths)
+    {
+        this.directory = directory;
+        for (Path path : paths)
+        {
+            addPath(path);
+        }
+    }
+
+    /**
+     * Ignores a file or directory. Paths outside the backed up directory are dropped, since nothing can match them.
+     * @param path File or directory to ignore. Relative paths are resolved against the backed up directory.
+     */
+    public synchronized void addPath(Path path)
+    {
+        Path absoluteDirectory = directory.toAbsolutePath().normalize();
+        Path absolute = absoluteDirectory.resolve(path).normalize();
+        if (!absolute.startsWith(absoluteDirectory))
+        { //may still be inside through a symlink
+            try
+            {
+                absoluteDirectory = directory.toRealPath();
+                absolute = absolute.toRealPath();
+            }
+            catch (IOException e)
+            {
+                return;
+            }
+            if (!absolute.startsWith(absoluteDirectory)) return;
+        }
+        exact.add(absoluteDirectory.relativize(absolute));
+    }
+
+    /**
+     * Ignores every entry whose path relative to the backed up directory matches a pattern
+     * @param syntaxAndPattern A pattern in the form accepted by FileSystem.getPathMatcher, e.g. "glob:logs/**" or
+     *                         "regex:.*\\.tmp"
+     * @throws IllegalArgumentException Thrown if the pattern isn't valid
+     */
+    public synchronized void addPattern(String syntaxAndPattern) throws IllegalArgumentException
+    {
+        patterns.add(FileSystems.getDefault().getPathMatcher(syntaxAndPattern));
+    }
+
+    /**
+     * Checks whether an entry found while walking the backed up directory is ignored
+     * @param path The entry, as resolved from the backed up directory
+     * @return True if the entry or pattern matches
+     */
+    public boolean isIgnored(Path path)
+    {
+        Path relative = directory.relativize(path);
+        if (exact.contains(relative)) return true;
+        for (PathMatcher pattern : patterns)
+        {
+            if (pattern.matches(relative)) return true;
+        }
+        return false;
+    }
+}
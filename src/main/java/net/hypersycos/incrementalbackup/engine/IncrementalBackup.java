@@ -1,27 +1,45 @@
 package net.hypersycos.incrementalbackup.engine;
 
-import net.hypersycos.incrementalbackup.util.Pair;
+import net.hypersycos.incrementalbackup.compression.BlockScheme;
+import net.hypersycos.incrementalbackup.compression.BlockStore;
+import net.hypersycos.incrementalbackup.compression.CompressedFile;
+import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.NoCompress;
+import net.hypersycos.incrementalbackup.util.HashAlgorithm;
 
 import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
 
 public class IncrementalBackup
 {
-    private static final String removedString = "removed";
-    private static final String protectedFile = "journal";
     private final Path backupPath;
     private int fullBackupSequence = 0;
     private int incrementalBackupSequence = 0;
     private final Path directory;
-    private Set<Path> trackedFiles = new HashSet<>();
-    private Set<Path> ignoredPaths;
+    private Map<Path, FileMetadata> trackedFiles = new HashMap<>();
+    private final IgnoreMatcher ignores;
+    private ForkJoinPool pool = null;
+    private boolean ownsPool = false;
+    private boolean metadataChangeDetection = false;
+    private final HashIndex hashIndex;
+    private final Journal journal;
+    private volatile BackupIndex backupIndex = null;
+    private volatile BackupIndex olderIndex = null;
+    private final VersionCache versionCache = new VersionCache(64*1024*1024);
+    private final MemoryBudget restoreMemory = new MemoryBudget(512L*1024*1024);
+    private final RateLimiter consolidateRate = new RateLimiter(0);
+    private BlockStore blockStore = null;
+    private boolean deduplication = false;
+    //temporary files are made in this directory under backupPath, and cleared out when a backup starts
+    private static final String temporaryDirectory = "temp";
 
     public IncrementalBackup(Path directory, Path backupPath)
     {
@@ -33,45 +51,238 @@ public class IncrementalBackup
         this.backupPath = backupPath;
         this.directory = directory;
         ignores.add(backupPath);
-        this.ignoredPaths = ignores;
+        this.ignores = new IgnoreMatcher(directory, ignores);
+        this.hashIndex = new HashIndex(backupPath, HashAlgorithm.SHA256);
 
-        File journal = backupPath.resolve(protectedFile).toFile();
-        try (Scanner journalScanner = new Scanner(journal))
-        {
-            fullBackupSequence = Integer.parseInt(journalScanner.nextLine());
-            incrementalBackupSequence = Integer.parseInt(journalScanner.nextLine());
-            while (journalScanner.hasNextLine())
+        this.journal = Journal.open(backupPath);
+        fullBackupSequence = journal.getFullSequence();
+        incrementalBackupSequence = journal.getIncrementalSequence();
+        trackedFiles = journal.getTrackedFiles();
+        if (Files.isDirectory(BlockStore.getLocation(backupPath)))
+        { //opened whether or not deduplication is enabled, so files already stored in it can be restored
+            try
+            {
+                blockStore = BlockStore.open(backupPath);
+            }
+            catch (IOException e)
             {
-                trackedFiles.add(Paths.get(journalScanner.nextLine()));
+                throw new UncheckedIOException(e);
             }
         }
-        catch (FileNotFoundException | NumberFormatException | NoSuchElementException e)
+    }
+
+    /**
+     * Sets the number of worker threads used to walk directories, and back up and restore files.
+     * @param threads Number of workers. 1 or fewer backs up sequentially on the calling thread.
+     */
+    public synchronized void setParallelism(int threads)
+    {
+        setPool(threads > 1 ? new ForkJoinPool(threads) : null);
+        ownsPool = pool != null;
+    }
+
+    /**
+     * Sets the pool used to walk directories, and back up and restore files.
+     * @param pool Pool to run on. Null backs up sequentially on the calling thread.
+     */
+    public synchronized void setPool(ForkJoinPool pool)
+    {
+        if (ownsPool)
         {
-            //TODO: search for highest numbers
-            //TODO: get tracked files
+            this.pool.shutdown();
         }
+        this.pool = pool;
+        ownsPool = false;
     }
 
     /**
-     * Writes backup journal
-     * @throws IOException Thrown if unable to create temporary file, or unable to overwrite journal
+     * Sets whether incremental backups trust file metadata. When enabled, a file whose size, last modified time and
+     * file key match the journal is treated as unchanged without being opened.
+     * @param enabled Whether to skip files with unchanged metadata
      */
-    private void writeJournal() throws IOException
+    public synchronized void setMetadataChangeDetection(boolean enabled)
+    {
+        this.metadataChangeDetection = enabled;
+    }
+
+    /**
+     * Sets whether base copies and large differences are stored in a block store under backupPath, which keeps each
+     * block once however many files and full sequences hold it. A full backup of a mostly unchanged directory then
+     * writes little more than a list of blocks per file. Blocks are only deleted once deleteFullSequence has removed
+     * every full sequence referring to them.
+     * @param enabled Whether to store new backup files in the block store
+     * @throws IOException Thrown if unable to create or open the block store
+     */
+    public synchronized void setDeduplication(boolean enabled) throws IOException
+    {
+        if (enabled && blockStore == null)
+        {
+            blockStore = BlockStore.open(backupPath);
+        }
+        this.deduplication = enabled;
+    }
+
+    /**
+     * Returns the scheme to store a backup file with: the block store if deduplication is enabled, or else the one
+     * chosen for its data
+     * @param chosen Compression chosen for the data
+     */
+    protected CompressionScheme deduplicate(CompressionScheme chosen)
+    {
+        return deduplication ? new BlockScheme(blockStore) : chosen;
+    }
+
+    /**
+     * Returns the index of the newest backed up version of each tracked file in the current full sequence
+     */
+    protected HashIndex getHashIndex()
+    {
+        return hashIndex;
+    }
+
+    /**
+     * Returns the index of backup files in the current full sequence
+     */
+    protected BackupIndex getBackupIndex()
+    {
+        BackupIndex index = backupIndex;
+        return index != null && index.getFullSequence() == fullBackupSequence ? index : refreshBackupIndex();
+    }
+
+    /**
+     * Makes sure the backup index is for the current full sequence, building it if not. Must not be called by
+     * workers during a walk, as the thread running the backup holds the lock.
+     */
+    private synchronized BackupIndex refreshBackupIndex()
+    {
+        if (backupIndex == null || backupIndex.getFullSequence() != fullBackupSequence)
+        {
+            backupIndex = BackupIndex.load(backupPath, fullBackupSequence);
+        }
+        return backupIndex;
+    }
+
+    /**
+     * Returns the cache of newest reconstructed versions of tracked files in the current full sequence
+     */
+    protected VersionCache getVersionCache()
+    {
+        return versionCache;
+    }
+
+    /**
+     * Ignores every file and directory whose path relative to the backed up directory matches a pattern
+     * @param syntaxAndPattern A pattern in the form accepted by FileSystem.getPathMatcher, e.g. "glob:logs/**"
+     * @throws IllegalArgumentException Thrown if the pattern isn't valid
+     */
+    public synchronized void addIgnorePattern(String syntaxAndPattern) throws IllegalArgumentException
+    {
+        ignores.addPattern(syntaxAndPattern);
+    }
+
+    /**
+     * Sets the hash function used to detect changed files. Changing it discards the existing hash index, so the next
+     * incremental backup compares every file against its backup.
+     * @param algorithm Hash function to use. SHA256 by default; XXH64 and CRC32C are much faster but not cryptographic.
+     */
+    public synchronized void setHashAlgorithm(HashAlgorithm algorithm)
+    {
+        hashIndex.setAlgorithm(algorithm);
+    }
+
+    /**
+     * Sets how much memory may be used to cache the newest version of files between incremental backups
+     * @param bytes Maximum total size of cached versions. 0 disables the cache.
+     */
+    public void setVersionCacheSize(long bytes)
+    {
+        versionCache.setBudget(bytes);
+    }
+
+    /**
+     * Sets how much memory parallel restores may reserve for rebuilding files at once. Files estimated to need more
+     * than the whole budget are rebuilt one at a time.
+     * @param bytes Maximum total memory reserved by files being restored. 512MiB by default.
+     */
+    public void setRestoreMemoryBudget(long bytes)
+    {
+        restoreMemory.setBudget(bytes);
+    }
+
+    /**
+     * Sets how fast consolidate may read backup files
+     * @param bytesPerSecond Maximum average rate backup files are read at. 0, the default, is unlimited.
+     */
+    public void setConsolidateRate(long bytesPerSecond)
     {
-        File tempJournal = File.createTempFile("tempJournal",".tmp");
-        try(BufferedWriter bw = new BufferedWriter(new FileWriter(tempJournal)))
+        consolidateRate.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Runs a directory walk, on the pool if one is set
+     * @param walk Task which walks the top-level directory
+     */
+    private void walk(Runnable walk)
+    {
+        if (pool == null)
         {
-            bw.write(String.valueOf(fullBackupSequence));
-            bw.newLine();
-            bw.write(String.valueOf(incrementalBackupSequence));
-            bw.newLine();
-            for (Path path : trackedFiles)
+            walk.run();
+        }
+        else
+        {
+            pool.invoke(ForkJoinTask.adapt(walk));
+        }
+    }
+
+    /**
+     * Runs every task, forking them across the pool if one is set. Returns once all have finished, even if one
+     * throws: every forked task is joined before the first exception is rethrown, so nothing is left running.
+     * @param tasks Tasks to run
+     */
+    private void runAll(List<Runnable> tasks)
+    {
+        if (pool == null)
+        {
+            for (Runnable task : tasks)
             {
-                bw.write(path.toString());
-                bw.newLine();
+                task.run();
             }
         }
-        Files.copy(tempJournal.toPath(), backupPath.resolve(protectedFile), StandardCopyOption.REPLACE_EXISTING);
+        else
+        {
+            List<ForkJoinTask<?>> forked = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks)
+            {
+                forked.add(ForkJoinTask.adapt(task).fork());
+            }
+            RuntimeException failure = null;
+            for (ForkJoinTask<?> task : forked)
+            {
+                try
+                {
+                    task.join();
+                }
+                catch (RuntimeException e)
+                {
+                    if (failure == null) failure = e;
+                    else failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * Commits the backup to the journal, after writing the hash index and manifest beside it
+     * @throws IOException Thrown if unable to write the journal, hash index or manifest
+     */
+    private void writeJournal() throws IOException
+    {
+        BackupIndex index = backupIndex;
+        if (index != null) index.commit(); //may still be for the previous full sequence, which was just written
+        if (blockStore != null) blockStore.write();
+        hashIndex.write();
+        journal.commit(fullBackupSequence, incrementalBackupSequence, trackedFiles);
     }
 
     /**
@@ -125,77 +336,168 @@ public class IncrementalBackup
      */
     public synchronized void restore(int fullSequence, int incrementalSequence, Path restorePath) throws IOException
     {
-        restoreDirectory(backupPath.resolve(String.valueOf(fullSequence)), fullSequence, incrementalSequence, restorePath);
+        restoreDirectory(fullSequence, incrementalSequence, restorePath);
     }
 
     protected void restoreFile(Path restorePath, List<Path> files) throws IOException
     {
-        Files.copy(files.get(files.size()-1), restorePath, StandardCopyOption.REPLACE_EXISTING);
+        try (InputStream in = openChain(files))
+        {
+            Files.copy(in, restorePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Restores a single file as it was at version fullSequence.incrementalSequence, rebuilding only its own chain
+     * @param relativePath Path of the file, relative to the backed up directory
+     * @param target Where to write the restored file
+     * @throws NoSuchFileException Thrown if the file had no backup, or was removed, at that version
+     * @throws IOException Thrown if unable to rebuild or write the file
+     */
+    public synchronized void restoreFile(Path relativePath, int fullSequence, int incrementalSequence, Path target) throws IOException
+    {
+        List<Path> chain = getChain(relativePath, fullSequence, incrementalSequence);
+        File parent = target.toAbsolutePath().getParent().toFile();
+        if (!parent.exists() && !parent.mkdirs())
+        {
+            throw new IOException("Unable to make "+parent);
+        }
+        restoreFile(target, chain);
+    }
+
+    /**
+     * Opens a single file as it was at version fullSequence.incrementalSequence, rebuilding only its own chain
+     * @param relativePath Path of the file, relative to the backed up directory
+     * @return Stream of the file's contents, which the caller must close
+     * @throws NoSuchFileException Thrown if the file had no backup, or was removed, at that version
+     * @throws IOException Thrown if unable to rebuild the file
+     */
+    public synchronized InputStream openVersion(Path relativePath, int fullSequence, int incrementalSequence) throws IOException
+    {
+        return openChain(getChain(relativePath, fullSequence, incrementalSequence));
+    }
+
+    /**
+     * Opens the newest version of a file from its chain
+     * @param files The file's chain, from its base copy to its newest delta
+     * @throws IOException Thrown if unable to read a backup file
+     */
+    protected InputStream openChain(List<Path> files) throws IOException
+    {
+        Path newest = files.get(files.size()-1);
+        return parse(newest).getCompression().decompress(Files.newInputStream(newest));
     }
 
     /**
-     * Recursively restores up a directory
-     * @param directory Directory being restored from
+     * Reads a backup file's details from its name, giving a BlockScheme this backup's block store
+     */
+    protected BackupPath parse(Path file)
+    {
+        return new BackupPath(file.getFileName().toString(), blockStore);
+    }
+
+    /**
+     * Pairs each file of a chain with the scheme it's stored with, for a handler to rebuild it from
+     */
+    protected List<CompressedFile> resolve(List<Path> files)
+    {
+        List<CompressedFile> resolved = new ArrayList<>(files.size());
+        for (Path file : files)
+        {
+            resolved.add(new CompressedFile(file, parse(file).getCompression()));
+        }
+        return resolved;
+    }
+
+    private List<Path> getChain(Path relativePath, int fullSequence, int incrementalSequence) throws NoSuchFileException
+    {
+        if (relativePath.isAbsolute()) relativePath = directory.relativize(relativePath);
+        List<Path> chain = getBackupIndex(fullSequence).getChain(relativePath, incrementalSequence);
+        if (chain.size() == 0)
+        {
+            throw new NoSuchFileException(relativePath.toString(), null, "No backup at "+fullSequence+"."+incrementalSequence);
+        }
+        return chain;
+    }
+
+    /**
+     * Estimates the peak memory restoreFile needs to rebuild a file from its chain
+     * @param files The file's chain, from its base copy to its newest delta
+     * @return Estimated bytes. Files which are copied rather than rebuilt need none.
+     * @throws IOException Thrown if unable to read the size of a backup file
+     */
+    protected long getRestoreMemory(List<Path> files) throws IOException
+    {
+        return 0;
+    }
+
+    /**
+     * Restores every file and directory in a full sequence's backup index. Files are restored across the pool when
+     * one is set, with no more than the restore memory budget reserved at once.
+     * @param fullSequence The full sequence to restore from
+     * @param incrementalSequence The latest incremental backup to restore
      * @param restorePath Directory to copy to
-     * @throws NullPointerException Thrown if directory doesn't exist
-     * @throws IOException Thrown if unable to copy a file
+     * @throws IOException Thrown if unable to make a directory or copy a file
      */
-    private void restoreDirectory(Path directory, int fullSequence, int incrementalSequence, Path restorePath) throws NullPointerException, IOException
+    private void restoreDirectory(int fullSequence, int incrementalSequence, Path restorePath) throws IOException
     {
-        Set<Path> directories = new HashSet<>();
-        Map<String, List<Pair<BackupPath,Path>>> files = new HashMap<>();
-        Path realPath = getRealPath(directory, fullSequence, restorePath);
-        if (!realPath.toFile().exists() && !realPath.toFile().mkdirs()){
-            throw new IOException("Unable to make "+realPath);
+        BackupIndex index = getBackupIndex(fullSequence);
+        Set<Path> directories = new HashSet<>(index.getDirectories());
+        Map<Path, List<Path>> chains = new HashMap<>();
+        for (Path relativePath : index.getPaths())
+        {
+            List<Path> chain = index.getChain(relativePath, incrementalSequence);
+            if (chain.size() == 0) continue;
+            chains.put(relativePath, chain);
+            Path parent = relativePath.getParent();
+            directories.add(parent == null ? relativePath.getFileSystem().getPath("") : parent);
         }
-        for (File file : Objects.requireNonNull(directory.toFile().listFiles()))
+        //made up front, so workers never race to create the same directory
+        for (Path relativeDirectory : directories)
         {
-            Path path = file.toPath();
-            if (file.isDirectory())
+            File realPath = restorePath.resolve(relativeDirectory).toFile();
+            if (!realPath.exists() && !realPath.mkdirs())
             {
-                directories.add(path);
+                throw new IOException("Unable to make "+realPath);
             }
-            else
-            {
-                if (file.getName().equals(protectedFile)) continue;
-                BackupPath details;
+        }
+
+        List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> tasks = new ArrayList<>(chains.size());
+        for (Map.Entry<Path, List<Path>> entry : chains.entrySet())
+        {
+            tasks.add(() -> {
                 try
                 {
-                    details = new BackupPath(file.getName());
+                    long reserved = restoreMemory.acquire(getRestoreMemory(entry.getValue()));
+                    try
+                    {
+                        restoreFile(restorePath.resolve(entry.getKey()), entry.getValue());
+                    }
+                    finally
+                    {
+                        restoreMemory.release(reserved);
+                    }
                 }
-                catch (NumberFormatException | IndexOutOfBoundsException e)
+                catch (IOException e)
                 {
-                    continue;
+                    failures.add(e);
                 }
-                if (details.getMinorVersion() > incrementalSequence) continue;
-
-                if (!files.containsKey(details.getName()))
-                {
-                    files.put(details.getName(), new ArrayList<>());
+                catch (RuntimeException e)
+                { //such as a corrupt chunk, which shouldn't stop the other files being restored
+                    failures.add(new IOException("Unable to restore "+entry.getKey(), e));
                 }
-                files.get(details.getName()).add(new Pair<>(details, file.toPath()));
-            }
+            });
         }
-        for (String name : files.keySet())
+        walk(() -> runAll(tasks));
+        if (failures.size() > 0)
         {
-            files.get(name).sort(Comparator.comparing((pair) -> pair.first().getMinorVersion() - (pair.first().isRemoved() ? 0.5 : 0)));
-            List<Path> toPass = new ArrayList<>();
-            for (Pair<BackupPath, Path> entry : files.get(name))
+            IOException first = failures.get(0);
+            for (IOException e : failures.subList(1, failures.size()))
             {
-                if (entry.first().isRemoved())
-                {
-                    toPass.clear();
-                }
-                else
-                {
-                    toPass.add(entry.second());
-                }
+                first.addSuppressed(e);
             }
-            if (toPass.size() > 0) restoreFile(realPath.resolve(name), toPass);
-        }
-        for (Path subDirectory : directories)
-        {
-            restoreDirectory(subDirectory, fullSequence, incrementalSequence, restorePath);
+            throw first;
         }
     }
 
@@ -205,10 +507,15 @@ public class IncrementalBackup
      */
     public synchronized void performFullBackup() throws IOException
     {
-        Set<Path> newTrackedFiles = Collections.synchronizedSet(new HashSet<>());
+        clearTemporaryFiles();
+        Map<Path, FileMetadata> newTrackedFiles = Collections.synchronizedMap(new HashMap<>());
         Set<Exception> exceptions = Collections.synchronizedSet(new HashSet<>());
-        backupDirectory(directory, newTrackedFiles, exceptions, true, null);
+        refreshBackupIndex();
+        walk(() -> backupDirectory(directory, newTrackedFiles, exceptions, true));
         trackedFiles = newTrackedFiles;
+        //the next incremental starts a new chain, so nothing in the index is a previous version any more
+        hashIndex.clear();
+        versionCache.clear();
 
         fullBackupSequence++;
         int temp = incrementalBackupSequence;
@@ -231,13 +538,25 @@ public class IncrementalBackup
      */
     public synchronized void performIncrementalBackup() throws IOException
     {
-        Set<Path> newTrackedFiles = Collections.synchronizedSet(new HashSet<>());
+        clearTemporaryFiles();
+        Map<Path, FileMetadata> newTrackedFiles = Collections.synchronizedMap(new HashMap<>());
         Set<Exception> exceptions = Collections.synchronizedSet(new HashSet<>());
-        backupDirectory(directory, newTrackedFiles, exceptions, false, generateBackupLinks());
-        for (Path path : trackedFiles)
+        refreshBackupIndex();
+        try
+        {
+            walk(() -> backupDirectory(directory, newTrackedFiles, exceptions, false));
+        }
+        catch (RuntimeException e)
+        { //cached versions may be ahead of what was written, so can't be trusted
+            versionCache.clear();
+            throw e;
+        }
+        for (Path path : trackedFiles.keySet())
         {
-            if (!newTrackedFiles.contains(path))
+            if (!newTrackedFiles.containsKey(path))
             {
+                hashIndex.remove(path);
+                versionCache.remove(path);
                 //instead of creating an empty file, create a unique marker for a removed file.
                 //Is the distinction ever useful? I don't know, but maybe.
                 BackupPath backupPath = new BackupPath(incrementalBackupSequence, path.getFileName().toString(), true);
@@ -246,6 +565,8 @@ public class IncrementalBackup
                 {
                     if (!getBackupParentPath(path).resolve(name).toFile().createNewFile())
                         exceptions.add(new IOException("Unable to create "+name));
+                    else
+                        getBackupIndex().add(directory.relativize(path), backupPath, 0, 0);
                 }
                 catch (IOException e)
                 {
@@ -269,21 +590,191 @@ public class IncrementalBackup
             writeJournal();
         }
         catch (IOException e)
-        {
+        { //anything written this time will be replaced next time, so the cache no longer matches the chain
             incrementalBackupSequence--;
+            versionCache.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts a new full sequence from the backup alone, without reading the backed up directory. The newest version
+     * of every file is rebuilt from its chain and written as a base copy, across the pool when one is set, with no
+     * more than the restore memory budget reserved and backup files read no faster than the consolidate rate.
+     * The new full sequence is written beside the backup and only moved into place once every file has been written,
+     * so if this throws, the backup is left as it was. Does nothing if no incremental backup has been made in the
+     * current full sequence.
+     * @throws IOException Thrown if unable to rebuild or write a file, or write the journal
+     */
+    public synchronized void consolidate() throws IOException
+    {
+        if (incrementalBackupSequence == 0) return;
+        clearTemporaryFiles();
+        BackupIndex index = getBackupIndex();
+        int newSequence = fullBackupSequence + 1;
+        Path target = backupPath.resolve(String.valueOf(newSequence));
+        Path staging = backupPath.resolve(newSequence + ".consolidating");
+        if (Files.exists(target))
+        {
+            throw new FileAlreadyExistsException(target.toString(), null, "Full sequence already exists");
+        }
+        deleteTree(staging); //left by a consolidation which failed part way
+        BackupIndex newIndex = BackupIndex.create(backupPath, newSequence);
+        for (Path relativeDirectory : index.getDirectories())
+        {
+            Files.createDirectories(staging.resolve(relativeDirectory));
+            newIndex.addDirectory(relativeDirectory);
+        }
+
+        List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> tasks = new ArrayList<>();
+        for (Path relativePath : index.getPaths())
+        {
+            List<Path> chain = index.getChain(relativePath, incrementalBackupSequence - 1);
+            if (chain.size() == 0) continue;
+            Path parent = relativePath.getParent();
+            Path stagingParent = parent == null ? staging : staging.resolve(parent);
+            Files.createDirectories(stagingParent);
+            tasks.add(() -> {
+                try
+                {
+                    long stored = 0;
+                    for (Path file : chain)
+                    {
+                        stored += Files.size(file);
+                    }
+                    consolidateRate.acquire(stored);
+                    long reserved = restoreMemory.acquire(getRestoreMemory(chain));
+                    try
+                    {
+                        BackupPath name = new BackupPath(0, relativePath.getFileName().toString(), false);
+                        BackupIndex.Entry written = consolidateFile(stagingParent, name, chain);
+                        newIndex.add(relativePath, written.details(), written.length(), written.checksum());
+                    }
+                    finally
+                    {
+                        restoreMemory.release(reserved);
+                    }
+                }
+                catch (IOException e)
+                {
+                    failures.add(e);
+                }
+                catch (RuntimeException e)
+                {
+                    failures.add(new IOException("Unable to consolidate "+relativePath, e));
+                }
+            });
+        }
+        walk(() -> runAll(tasks));
+        if (failures.size() > 0)
+        {
+            IOException first = failures.get(0);
+            for (IOException e : failures.subList(1, failures.size()))
+            {
+                first.addSuppressed(e);
+            }
+            throw first;
+        }
+
+        Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE);
+        //the newest version of every file is unchanged, so the hash index and version cache still hold
+        int oldSequence = incrementalBackupSequence;
+        fullBackupSequence = newSequence;
+        incrementalBackupSequence = 1;
+        backupIndex = newIndex;
+        olderIndex = index;
+        try
+        {
+            index.commit();
+            writeJournal();
+        }
+        catch (IOException e)
+        {
+            fullBackupSequence--;
+            incrementalBackupSequence = oldSequence;
+            backupIndex = index;
+            olderIndex = null;
+            Files.deleteIfExists(Manifest.getLocation(backupPath, newSequence));
+            Files.move(target, staging, StandardCopyOption.ATOMIC_MOVE);
             throw e;
         }
     }
 
     /**
-     * Recursively backs up a directory, keeping track of all existing files and any exceptions
+     * Writes the newest version of a file as a base copy in a new full sequence
+     * @param backupDir Directory to write the base copy to
+     * @param name Details of the base copy, whose compression may be set before it is named
+     * @param files The file's chain, from its base copy to its newest delta
+     * @return The base copy as written
+     * @throws IOException Thrown if unable to rebuild or write the file
+     */
+    protected BackupIndex.Entry consolidateFile(Path backupDir, BackupPath name, List<Path> files) throws IOException
+    {
+        //copied as stored, so it keeps the stored file's compression
+        name.setCompression(parse(files.get(files.size()-1)).getCompression());
+        Path copy = backupDir.resolve(name.toName());
+        Files.copy(files.get(files.size()-1), copy, StandardCopyOption.REPLACE_EXISTING);
+        if (name.getCompression() instanceof BlockScheme blocks) blocks.retain(copy);
+        return new BackupIndex.Entry(name, copy, Files.size(copy), BackupIndex.checksum(copy));
+    }
+
+    /**
+     * Deletes an older full sequence and its manifest. Blocks in the block store which no other full sequence
+     * refers to are deleted with it, once the reference counts have been written without them.
+     * @param fullSequence The full sequence to delete, which can't be the current one
+     * @throws IllegalArgumentException Thrown if fullSequence is the current full sequence
+     * @throws IOException Thrown if unable to read its backup files or delete it
+     */
+    public synchronized void deleteFullSequence(int fullSequence) throws IOException
+    {
+        if (fullSequence == fullBackupSequence)
+        {
+            throw new IllegalArgumentException("Can't delete the current full sequence");
+        }
+        Path root = backupPath.resolve(String.valueOf(fullSequence));
+        if (blockStore != null && Files.exists(root))
+        {
+            BackupIndex index = getBackupIndex(fullSequence);
+            List<Path> recipes = new ArrayList<>();
+            for (Path relativePath : index.getPaths())
+            {
+                for (BackupIndex.Entry entry : index.getVersions(relativePath, Integer.MAX_VALUE))
+                {
+                    if (entry.details().getCompression() instanceof BlockScheme) recipes.add(entry.file());
+                }
+            }
+            //released before deleting, as a full sequence which fails to delete part way can't be restored anyway
+            blockStore.release(recipes);
+        }
+        if (olderIndex != null && olderIndex.getFullSequence() == fullSequence) olderIndex = null;
+        deleteTree(root);
+        Files.deleteIfExists(Manifest.getLocation(backupPath, fullSequence));
+        if (blockStore != null) blockStore.write();
+    }
+
+    private static void deleteTree(Path root) throws IOException
+    {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root))
+        {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList())
+            {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Recursively backs up a directory, keeping track of all existing files and any exceptions.
+     * Subdirectories and files are forked across the pool when one is set.
      * @param directory Directory to back up
-     * @param trackedFiles Synchronised list of all files backed up
+     * @param trackedFiles Synchronised map of all files backed up, to their metadata
      * @param failures Synchronised list of all expected exceptions
      * @param isFullBackup Is this a full or incremental backup?
      * @throws NullPointerException Thrown if directory doesn't exist
      */
-    private void backupDirectory(Path directory, Set<Path> trackedFiles, Set<Exception> failures, boolean isFullBackup, Map<Path, List<Path>> links) throws NullPointerException
+    private void backupDirectory(Path directory, Map<Path, FileMetadata> trackedFiles, Set<Exception> failures, boolean isFullBackup) throws NullPointerException
     {
         Path backupDir = getBackupPath(directory);
         if (!Files.exists(backupDir) && !backupDir.toFile().mkdirs())
@@ -291,53 +782,77 @@ public class IncrementalBackup
             failures.add(new IOException("Unable to create "+backupDir));
             return;
         }
+        getBackupIndex().addDirectory(this.directory.relativize(directory));
+        List<Runnable> tasks = new ArrayList<>();
         for (File file : Objects.requireNonNull(directory.toFile().listFiles()))
         {
             Path path = file.toPath();
-            try
+            if (ignores.isIgnored(path)) continue;
+
+            if (file.isDirectory())
             {
-                boolean isIgnored = false;
-                for (Path ignoredPath : ignoredPaths)
-                {
-                    if (Files.isSameFile(ignoredPath, path))
-                    {
-                        isIgnored = true;
-                        break;
-                    }
-                }
-                if (isIgnored) continue;
+                tasks.add(() -> backupDirectory(path, trackedFiles, failures, isFullBackup));
             }
-            catch (IOException e)
+            else
             {
-                failures.add(e);
-                continue;
+                tasks.add(() -> backupEntry(backupDir, path, trackedFiles, failures, isFullBackup));
             }
+        }
+        runAll(tasks);
+    }
 
-            if (file.isDirectory())
+    /**
+     * Backs up a single file from a directory walk, keeping track of it and any exception
+     * @param backupDir Directory the backup copy is written to
+     * @param path File to back up
+     * @param trackedFiles Synchronised map of all files backed up, to their metadata
+     * @param failures Synchronised list of all expected exceptions
+     * @param isFullBackup Is this a full or incremental backup?
+     */
+    private void backupEntry(Path backupDir, Path path, Map<Path, FileMetadata> trackedFiles, Set<Exception> failures, boolean isFullBackup)
+    {
+        try
+        {
+            //stat before reading, so a write during the backup is picked up next time
+            FileMetadata metadata = FileMetadata.of(path);
+            BackupPath backupName = new BackupPath(incrementalBackupSequence, path.getFileName().toString(), false);
+            if (isFullBackup)
             {
-                backupDirectory(path, trackedFiles, failures, isFullBackup, links);
+                backupFile(backupDir, backupName, path, null);
             }
             else
             {
-                try
+                //the chain as of the last backup, so excludes anything written by this one
+                List<Path> links = getBackupIndex().getChain(directory.relativize(path), incrementalBackupSequence - 1);
+                if (!isUnchanged(metadata, path, links))
                 {
-                    BackupPath backupName = new BackupPath(incrementalBackupSequence, path.getFileName().toString(), false);
-                    if (isFullBackup)
-                    {
-                        backupFile(backupDir, backupName, path, null);
-                    }
-                    else
-                    {
-                        backupFile(backupDir, backupName, path, links.get(path));
-                    }
-                    trackedFiles.add(path);
-                }
-                catch (IOException e)
-                {
-                    failures.add(e);
+                    backupFile(backupDir, backupName, path, links);
                 }
             }
+            trackedFiles.put(path, metadata);
         }
+        catch (IOException | RuntimeException e)
+        { //a handler can also fail on corrupt data, which shouldn't stop the rest of the backup
+            versionCache.remove(path);
+            //still tracked as it was, so the file isn't marked removed, and is backed up again next time it changes
+            FileMetadata previous = this.trackedFiles.get(path);
+            if (previous != null) trackedFiles.put(path, previous);
+            failures.add(e);
+        }
+    }
+
+    /**
+     * Checks whether a file can be skipped purely on its metadata
+     * @param metadata The file's current metadata
+     * @param path path to file
+     * @param links The backups for the file since the last full backup
+     * @return True if metadata change detection is enabled, the file already has a backup in this full sequence,
+     * and its metadata matches the journal, which was recorded long enough after the file was modified
+     */
+    private boolean isUnchanged(FileMetadata metadata, Path path, List<Path> links)
+    {
+        if (!metadataChangeDetection || links == null || links.size() == 0) return false;
+        return metadata.isUnchangedSince(this.trackedFiles.get(path));
     }
 
     /**
@@ -347,10 +862,13 @@ public class IncrementalBackup
      */
     protected void backupFile(Path backupLocation, BackupPath name, Path file, List<Path> links) throws IOException
     {
-        if (hasChanged(links, file.toFile()))
+        long length = Files.size(file);
+        byte[] hash = hashIndex.getAlgorithm().hash(file);
+        if (hasChanged(links, file, length, hash))
         { //we need to save
             copyFile(file, backupLocation, name);
         }
+        hashIndex.put(file, length, hash);
     }
 
     /**
@@ -360,53 +878,93 @@ public class IncrementalBackup
      */
     private void copyFile(Path file, Path newLocation, BackupPath name) throws IOException
     {
-        Files.copy(file, newLocation.resolve(name.toName()), StandardCopyOption.REPLACE_EXISTING);
+        name.setCompression(deduplicate(new NoCompress()));
+        Path copy = newLocation.resolve(name.toName());
+        try (OutputStream out = name.getCompression().compress(new BufferedOutputStream(Files.newOutputStream(copy))))
+        {
+            Files.copy(file, out);
+        }
+        getBackupIndex().add(directory.relativize(file), name, Files.size(copy), BackupIndex.checksum(copy));
     }
 
     /**
-     * Returns the latest backup file for a given file
-     * @param path path to file
-     * @return File of the latest backup
+     * Writes a backup file for a file, and records it in the backup index
+     * @param file The original file
+     * @param name Details of the backup file, used for its name
+     * @param data The data to store, already compressed
+     * @throws IOException Thrown if unable to write the backup file
      */
-    private File getLatestBackup(Path path)
+    protected void writeBackup(Path file, BackupPath name, byte[] data) throws IOException
     {
-        return getLatestBackup(path, fullBackupSequence, Integer.MAX_VALUE);
+        Path relativePath = directory.relativize(file);
+        Files.write(getBackupIndex().getBackupParent(relativePath).resolve(name.toName()), data);
+        getBackupIndex().add(relativePath, name, data.length, BackupIndex.checksum(data));
     }
 
     /**
-     * Returns the latest backup file for a given file after maxFull (but before the next full backup)
-     * @param path path to file
-     * @param maxFull The full backup number to use
-     * @return File of the latest backup
+     * Creates an empty file in backupPath/temp, on the same file system as the backup files so it can be moved in
+     * among them. Everything in the directory is deleted when the next backup or consolidation starts, so a file a
+     * crash leaves there doesn't last.
+     * @throws IOException Thrown if unable to create the file
      */
-    private File getLatestBackup(Path path, int maxFull)
+    protected Path createTemporaryFile() throws IOException
     {
-        return getLatestBackup(path, maxFull, Integer.MAX_VALUE);
+        Path temporary = backupPath.resolve(temporaryDirectory);
+        Files.createDirectories(temporary);
+        return Files.createTempFile(temporary, "", ".tmp");
     }
 
     /**
-     * Returns the latest backup file for a given file, between maxFull and maxInc
-     * @param path path to file
-     * @param maxFull The full backup number to use
-     * @param maxInc The latest incremental backup to use
-     * @return File of the latest backup
+     * Deletes whatever was left in backupPath/temp. A file which can't be deleted, such as one still open from
+     * openVersion on a platform which won't delete open files, is left for next time.
      */
-    private File getLatestBackup(Path path, int maxFull, int maxInc)
+    private void clearTemporaryFiles()
     {
-        File[] backups = getBackupsFromPath(path, maxFull);
-        File latest = null;
-        int bestNumber = -1;
-        for (File file : backups)
+        Path temporary = backupPath.resolve(temporaryDirectory);
+        if (!Files.isDirectory(temporary)) return;
+        try (Stream<Path> files = Files.list(temporary))
         {
-            int index = file.getName().lastIndexOf('.');
-            int incSequenceNumber = Integer.parseInt(file.getName().substring(index + 1));
-            if (incSequenceNumber <= maxInc && incSequenceNumber > bestNumber)
+            for (Path file : (Iterable<Path>) files::iterator)
             {
-                bestNumber = incSequenceNumber;
-                latest = file;
+                try
+                {
+                    Files.deleteIfExists(file);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Unable to delete "+file+": "+e);
+                }
             }
         }
-        return latest;
+        catch (IOException e)
+        {
+            System.err.println("Unable to list "+temporary+": "+e);
+        }
+    }
+
+    /**
+     * Returns the directory a file's backup files are written to
+     * @param file The original file
+     */
+    protected Path getBackupParent(Path file)
+    {
+        return getBackupIndex().getBackupParent(directory.relativize(file));
+    }
+
+    /**
+     * Moves a backup file into place, and records it in the backup index. Used for data too big to be written from
+     * an array, which is written to a temporary file first.
+     * @param file The original file
+     * @param name Details of the backup file, used for its name
+     * @param data The data to store, already compressed, from createTemporaryFile
+     * @throws IOException Thrown if unable to move or read the backup file
+     */
+    protected void moveBackup(Path file, BackupPath name, Path data) throws IOException
+    {
+        Path relativePath = directory.relativize(file);
+        Path backup = getBackupIndex().getBackupParent(relativePath).resolve(name.toName());
+        Files.move(data, backup, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        getBackupIndex().add(relativePath, name, Files.size(backup), BackupIndex.checksum(backup));
     }
 
     /**
@@ -439,121 +997,51 @@ public class IncrementalBackup
         return backupPath.resolve(String.valueOf(fullBackupSequence)).resolve(directory.relativize(path));
     }
 
-    private Map<Path, List<Path>> generateBackupLinks()
-    {
-        Map<Path, List<Pair<BackupPath, Path>>> unordered = generateBackupLinks(fullBackupSequence);
-        Map<Path, List<Path>> sorted = new HashMap<>();
-        for (Path path : unordered.keySet())
-        {
-            List<Pair<BackupPath, Path>> files = unordered.get(path);
-            files.sort(Comparator.comparing((pair) -> pair.first().getMinorVersion() - (pair.first().isRemoved() ? 0.5 : 0)));
-            List<Path> toPass = new ArrayList<>();
-            for (Pair<BackupPath, Path> entry : files)
-            {
-                if (entry.first().isRemoved())
-                {
-                    toPass.clear();
-                }
-                else
-                {
-                    toPass.add(entry.second());
-                }
-            }
-            sorted.put(path, toPass);
-        }
-        return sorted;
-    }
-
-    private Map<Path, List<Pair<BackupPath, Path>>> generateBackupLinks(int fullBackupSequence)
-    {
-        Map<Path, List<Pair<BackupPath, Path>>> toReturn = new HashMap<>();
-        Path dir = backupPath.resolve(String.valueOf(fullBackupSequence));
-        if (dir.toFile().exists())
-        {
-            addBackupLinks(backupPath.resolve(String.valueOf(fullBackupSequence)), toReturn);
-        }
-        return toReturn;
-    }
-
-    private Path getRealPath(Path dir, int fullBackupSequence)
-    {
-        return getRealPath(dir, fullBackupSequence, directory);
-    }
-
-    private Path getRealPath(Path dir, int fullBackupSequence, Path mainDir)
-    {
-        Path relDir = backupPath.resolve(String.valueOf(fullBackupSequence)).relativize(dir);
-        return mainDir.resolve(relDir);
-    }
-
-    private void addBackupLinks(Path dir, Map<Path, List<Pair<BackupPath, Path>>> links)
-    {
-        Path realDir = getRealPath(dir, fullBackupSequence);
-        for (File file : Objects.requireNonNull(dir.toFile().listFiles()))
-        {
-            if (file.isDirectory())
-            {
-                addBackupLinks(file.toPath(), links);
-            }
-            else
-            {
-                BackupPath details = new BackupPath(file.getName());
-                if (details.getMinorVersion() >= incrementalBackupSequence) continue;
-                Path filePath = realDir.resolve(details.getName());
-                if (!links.containsKey(filePath))
-                {
-                    links.put(filePath, new ArrayList<>());
-                }
-                links.get(filePath).add(new Pair<>(details, file.toPath()));
-            }
-        }
-    }
-
     /**
-     * Returns all backup copies since the last full backup for a given file
-     * @param path path to file
-     * @return Array containing all relevant backup files
+     * Returns the backup index for any full sequence, only loading it if it isn't the current one, or the last other
+     * one asked for
+     * @param fullSequence full backup to use
      */
-    private File[] getBackupsFromPath(Path path)
+    private BackupIndex getBackupIndex(int fullSequence)
     {
-        return getBackupsFromPath(path, fullBackupSequence);
-    }
-
-    /**
-     * Returns all backup copies since the maxFull-th full backup for a given file
-     * @param path path to file
-     * @param maxFull full backup to use
-     * @return Array containing all relevant backup files
-     */
-    private File[] getBackupsFromPath(Path path, int maxFull)
-    {
-        Path parentPath = getBackupParentPath(path, maxFull);
-        String fileName = path.getFileName().toString();
-        return parentPath.toFile().listFiles((dir, name) -> name.matches("[0-9]+\\.r?\\."+Pattern.quote(fileName)));
+        BackupIndex index = getBackupIndex();
+        if (index.getFullSequence() == fullSequence) return index;
+        BackupIndex older = olderIndex;
+        if (older == null || older.getFullSequence() != fullSequence)
+        {
+            older = BackupIndex.load(backupPath, fullSequence);
+            olderIndex = older;
+        }
+        return older;
     }
 
     /**
-     * Compares two versions of a file to see whether there has been any changes
+     * Compares two versions of a file to see whether there has been any changes. The old version's hash comes from
+     * the hash index where possible, and is otherwise streamed from its backup, decompressed as it was stored.
      * @param oldFiles The collection of backups for the file. May be null or have length 0.
      * @param newFile The new copy of the file
+     * @param length Length of the new copy
+     * @param hash Hash of the new copy, using the hash index's algorithm
      * @return True if different (or unable to read oldFile), False if not
-     * @throws IOException Thrown if unable to read newfile
      */
-    protected boolean hasChanged(List<Path> oldFiles, File newFile) throws IOException
+    protected boolean hasChanged(List<Path> oldFiles, Path newFile, long length, byte[] hash)
     {
         if (oldFiles == null || oldFiles.size() == 0) return true;
-        File oldFile = oldFiles.get(oldFiles.size()-1).toFile();
+        HashIndex.Entry indexed = hashIndex.get(newFile);
+        if (indexed != null)
+        {
+            return !indexed.matches(length, hash);
+        }
         byte[] oldHash;
-        try
+        try (InputStream oldData = openChain(oldFiles))
         {
-            oldHash = generateMD5(Files.readAllBytes(oldFile.toPath()));
+            oldHash = hashIndex.getAlgorithm().hash(oldData);
         }
-        catch (IOException | NullPointerException e)
+        catch (IOException e)
         { //Assume if we can't access the old file, then it doesn't exist (newFile was created since our last backup).
             return true;
         }
-        byte[] newHash = generateMD5(Files.readAllBytes(newFile.toPath()));
-        return !Arrays.equals(oldHash, newHash);
+        return !Arrays.equals(oldHash, hash);
     }
 
     protected boolean isDifferent(byte[] oldData, byte[] newData)
@@ -564,26 +1052,4 @@ public class IncrementalBackup
         //byte[] newHash = generateMD5(newData);
         return !Arrays.equals(oldData, newData);
     }
-
-    /**
-     * Generates an MD5 checksum as a String.
-     * @param bytes The data being checksummed.
-     * @return Byte array of the checksum value.
-     */
-    private static byte[] generateMD5(byte[] bytes)
-    {
-        MessageDigest messageDigest;
-        try
-        {
-            messageDigest = MessageDigest.getInstance("MD5");
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            throw new AssertionError("MD5 unavailable");
-        }
-        messageDigest.update(bytes);
-
-        return messageDigest.digest();
-    }
-
 }
@@ -0,0 +1,317 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import net.hypersycos.incrementalbackup.util.CountingInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Append-only binary journal of the backup sequence numbers and tracked files. Each backup appends the files added,
+ * changed or removed since the last one, followed by a commit record holding the new sequence numbers and a checksum
+ * of the batch, so the cost of a commit follows the size of the change rather than the size of the tree. A batch
+ * without a valid commit record, left by a crash, is ignored and cut off. Once enough has been appended, the journal
+ * is compacted by writing the whole state beside it and moving it into place.
+ */
+class Journal
+{
+    static final String journalFile = "journal";
+    private static final int magic = 0x424A524E; //BJRN
+    //version 1 stored modified times to the millisecond, and is rewritten as the current version on the next commit
+    private static final byte formatVersion = 2;
+    private static final byte putRecord = 'A';
+    private static final byte removeRecord = 'R';
+    private static final byte commitRecord = 'C';
+    //marks a removed path in a batch, compared by identity
+    private static final FileMetadata removed = new FileMetadata(-1, FileTime.fromMillis(-1), "", false);
+
+    private final Path location;
+    private final Map<Path, FileMetadata> committed = new HashMap<>();
+    private int fullSequence = 0;
+    private int incrementalSequence = 0;
+    private long length = 0; //end of the last commit, which appends start from
+    private long appended = 0; //records appended since the journal was last written whole, beyond the state itself
+    private boolean needsRewrite = true;
+
+    private Journal(Path location)
+    {
+        this.location = location;
+    }
+
+    /**
+     * Loads the journal stored in backupPath. A journal written in the old text format is read, then rewritten in
+     * binary on the next commit. A missing or unreadable journal is treated as empty.
+     * @param backupPath Directory containing the journal
+     */
+    static Journal open(Path backupPath)
+    {
+        Journal journal = new Journal(backupPath.resolve(journalFile));
+        if (!journal.readBinary())
+        {
+            journal.readText();
+        }
+        return journal;
+    }
+
+    int getFullSequence()
+    {
+        return fullSequence;
+    }
+
+    int getIncrementalSequence()
+    {
+        return incrementalSequence;
+    }
+
+    /**
+     * Returns a copy of every tracked file, as of the last commit
+     */
+    Map<Path, FileMetadata> getTrackedFiles()
+    {
+        return new HashMap<>(committed);
+    }
+
+    private boolean readBinary()
+    {
+        CRC32C crc = new CRC32C();
+        Map<Path, FileMetadata> batch = new HashMap<>();
+        long records = 0;
+        long batchRecords = 0;
+        byte version = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(location.toFile())));
+             DataInputStream in = new DataInputStream(new CheckedInputStream(counter, crc)))
+        {
+            if (in.readInt() != magic) return false;
+            version = in.readByte();
+            if (version < 1 || version > formatVersion) return false;
+            length = counter.getCount();
+            crc.reset();
+            while (true)
+            {
+                int tag = in.read();
+                if (tag == -1) break;
+                if (tag == putRecord)
+                {
+                    Path path = Paths.get(in.readUTF());
+                    batch.put(path, in.readBoolean() ? readMetadata(in, version) : null);
+                    batchRecords++;
+                }
+                else if (tag == removeRecord)
+                { //a removed path is kept in the batch as a marker, since null means no metadata
+                    batch.put(Paths.get(in.readUTF()), removed);
+                    batchRecords++;
+                }
+                else if (tag == commitRecord)
+                {
+                    int full = in.readInt();
+                    int incremental = in.readInt();
+                    int expected = (int) crc.getValue();
+                    if (new DataInputStream(counter).readInt() != expected) break;
+                    for (Map.Entry<Path, FileMetadata> entry : batch.entrySet())
+                    {
+                        if (entry.getValue() == removed) committed.remove(entry.getKey());
+                        else committed.put(entry.getKey(), entry.getValue());
+                    }
+                    fullSequence = full;
+                    incrementalSequence = incremental;
+                    records += batchRecords;
+                    batch.clear();
+                    batchRecords = 0;
+                    length = counter.getCount();
+                    crc.reset();
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+        catch (EOFException e)
+        {
+            //the last batch was cut off before its commit record, so is ignored
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        if (length == 0) return false; //cut off inside the header
+        appended = Math.max(0, records - committed.size());
+        needsRewrite = version != formatVersion;
+        return true;
+    }
+
+    private static FileMetadata readMetadata(DataInputStream in, byte version) throws IOException
+    {
+        long size = in.readLong();
+        if (version == 1)
+        { //only to the millisecond, so can't rule out a write in the same millisecond
+            return new FileMetadata(size, FileTime.fromMillis(in.readLong()), in.readUTF(), true);
+        }
+        FileTime modified = FileTime.from(Instant.ofEpochSecond(in.readLong(), in.readInt()));
+        return new FileMetadata(size, modified, in.readUTF(), in.readBoolean());
+    }
+
+    private void readText()
+    {
+        committed.clear();
+        try (Scanner journalScanner = new Scanner(location.toFile()))
+        {
+            fullSequence = Integer.parseInt(journalScanner.nextLine());
+            incrementalSequence = Integer.parseInt(journalScanner.nextLine());
+            while (journalScanner.hasNextLine())
+            {
+                FileMetadata.JournalEntry entry = FileMetadata.fromJournalLine(journalScanner.nextLine());
+                committed.put(entry.path(), entry.metadata());
+            }
+        }
+        catch (FileNotFoundException | NumberFormatException | NoSuchElementException e)
+        {
+            //TODO: search for highest numbers
+            //TODO: get tracked files
+        }
+        needsRewrite = true;
+    }
+
+    /**
+     * Records a backup. Only the tracked files which differ from the last commit are appended, unless the journal
+     * is due to be compacted, in which case it is written whole beside the old one and moved into place.
+     * If this throws, the journal on disk is left as of the last commit.
+     * @param fullSequence The new full sequence
+     * @param incrementalSequence The new incremental sequence
+     * @param trackedFiles Every file now tracked, to its metadata
+     * @throws IOException Thrown if unable to write the journal
+     */
+    synchronized void commit(int fullSequence, int incrementalSequence, Map<Path, FileMetadata> trackedFiles) throws IOException
+    {
+        Map<Path, FileMetadata> changes = new HashMap<>();
+        for (Map.Entry<Path, FileMetadata> entry : trackedFiles.entrySet())
+        {
+            if (!committed.containsKey(entry.getKey()) || !Objects.equals(committed.get(entry.getKey()), entry.getValue()))
+            {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Path path : committed.keySet())
+        {
+            if (!trackedFiles.containsKey(path))
+            {
+                changes.put(path, removed);
+            }
+        }
+
+        if (needsRewrite || appended + changes.size() > Math.max(committed.size(), 1024))
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(magic);
+            out.writeByte(formatVersion);
+            writeBatch(out, bytes, bytes.size(), trackedFiles, fullSequence, incrementalSequence);
+            Path temp = location.resolveSibling(journalFile + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                write(channel, bytes.toByteArray());
+            }
+            Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            length = bytes.size();
+            appended = 0;
+            needsRewrite = false;
+        }
+        else
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeBatch(out, bytes, 0, changes, fullSequence, incrementalSequence);
+            try (FileChannel channel = FileChannel.open(location, StandardOpenOption.WRITE))
+            {
+                try
+                {
+                    channel.truncate(length); //drops any batch a crash left without a commit record
+                    channel.position(length);
+                    write(channel, bytes.toByteArray());
+                }
+                catch (IOException e)
+                { //cut off whatever made it to disk, so the next append follows the last commit
+                    try
+                    {
+                        channel.truncate(length);
+                    }
+                    catch (IOException ignored)
+                    {
+                        needsRewrite = true;
+                    }
+                    throw e;
+                }
+            }
+            length += bytes.size();
+            appended += changes.size();
+        }
+
+        for (Map.Entry<Path, FileMetadata> entry : changes.entrySet())
+        {
+            if (entry.getValue() == removed) committed.remove(entry.getKey());
+            else committed.put(entry.getKey(), entry.getValue());
+        }
+        this.fullSequence = fullSequence;
+        this.incrementalSequence = incrementalSequence;
+    }
+
+    /**
+     * Writes a batch of records followed by its commit record
+     * @param batchStart Position in bytes where the batch starts, after which the checksum is taken
+     */
+    private static void writeBatch(DataOutputStream out, ByteArrayOutputStream bytes, int batchStart,
+                                   Map<Path, FileMetadata> changes, int fullSequence, int incrementalSequence) throws IOException
+    {
+        for (Map.Entry<Path, FileMetadata> entry : changes.entrySet())
+        {
+            FileMetadata metadata = entry.getValue();
+            if (metadata == removed)
+            {
+                out.writeByte(removeRecord);
+                out.writeUTF(entry.getKey().toString());
+                continue;
+            }
+            out.writeByte(putRecord);
+            out.writeUTF(entry.getKey().toString());
+            out.writeBoolean(metadata != null);
+            if (metadata != null)
+            {
+                Instant modified = metadata.lastModified().toInstant();
+                out.writeLong(metadata.size());
+                out.writeLong(modified.getEpochSecond());
+                out.writeInt(modified.getNano());
+                out.writeUTF(metadata.fileKey());
+                out.writeBoolean(metadata.racy());
+            }
+        }
+        out.writeByte(commitRecord);
+        out.writeInt(fullSequence);
+        out.writeInt(incrementalSequence);
+        out.flush();
+        CRC32C crc = new CRC32C();
+        byte[] written = bytes.toByteArray();
+        crc.update(written, batchStart, written.length - batchStart);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    private static void write(FileChannel channel, byte[] data) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,226 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import net.hypersycos.incrementalbackup.util.CountingInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only binary record of every backup file written in one full sequence, stored beside the journal as
+ * fullSequence.manifest. Each original path is written once and given an id, then every version of it is a short
+ * record of (path id, minor version, compression, removed flag, stored length, checksum). Reading it is a single
+ * sequential read, so the backup tree never needs to be listed.
+ */
+class Manifest
+{
+    static final String extension = ".manifest";
+    private static final int magic = 0x424D414E; //BMAN
+    private static final byte formatVersion = 1;
+    private static final byte pathRecord = 'P';
+    private static final byte directoryRecord = 'D';
+    private static final byte versionRecord = 'V';
+
+    /**
+     * Receives records as a manifest is read
+     */
+    interface Reader
+    {
+        void directory(Path relativePath);
+        void version(Path relativePath, BackupPath details, long length, int checksum);
+    }
+
+    private final Path location;
+    private final Map<Path, Integer> pathIds = new HashMap<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(pending);
+    private boolean rewrite;
+
+    private Manifest(Path location, boolean rewrite)
+    {
+        this.location = location;
+        this.rewrite = rewrite;
+        if (rewrite)
+        {
+            try
+            {
+                out.writeInt(magic);
+                out.writeByte(formatVersion);
+            }
+            catch (IOException e)
+            {
+                throw new AssertionError("IOException shouldn't occur");
+            }
+        }
+    }
+
+    static Path getLocation(Path backupPath, int fullSequence)
+    {
+        return backupPath.resolve(fullSequence + extension);
+    }
+
+    /**
+     * Reads the manifest of a full sequence, cutting off any record left half written by a crash
+     * @param backupPath Directory containing the journal
+     * @param fullSequence The full sequence to read
+     * @param reader Receives every complete record, in the order written
+     * @return The manifest, ready to append to, or null if there is no readable manifest
+     */
+    static Manifest read(Path backupPath, int fullSequence, Reader reader)
+    {
+        Manifest manifest = new Manifest(getLocation(backupPath, fullSequence), false);
+        Map<Integer, Path> paths = new HashMap<>();
+        long valid = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(manifest.location.toFile())));
+             DataInputStream in = new DataInputStream(counter))
+        {
+            if (in.readInt() != magic || in.readByte() != formatVersion) return null;
+            valid = counter.getCount();
+            while (true)
+            {
+                int tag = in.read();
+                if (tag == -1) break;
+                if (tag == pathRecord)
+                {
+                    int id = in.readInt();
+                    Path path = Paths.get(in.readUTF());
+                    paths.put(id, path);
+                    manifest.pathIds.put(path, id);
+                }
+                else if (tag == directoryRecord)
+                {
+                    reader.directory(Paths.get(in.readUTF()));
+                }
+                else if (tag == versionRecord)
+                {
+                    Path path = paths.get(in.readInt());
+                    int minor = in.readInt();
+                    boolean removed = in.readBoolean();
+                    String compression = in.readUTF();
+                    String flags = in.readUTF();
+                    long length = in.readLong();
+                    int checksum = in.readInt();
+                    if (path == null) break;
+                    reader.version(path, new BackupPath(minor, path.getFileName().toString(), removed, compression, flags), length, checksum);
+                }
+                else
+                {
+                    break;
+                }
+                valid = counter.getCount();
+            }
+        }
+        catch (EOFException e)
+        {
+            //a record was cut off part way, so everything before it is kept
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        if (valid == 0) return null;
+        try (FileChannel channel = FileChannel.open(manifest.location, StandardOpenOption.WRITE))
+        {
+            if (channel.size() > valid) channel.truncate(valid);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * Creates an empty manifest, which replaces any existing one when first committed
+     */
+    static Manifest create(Path backupPath, int fullSequence)
+    {
+        return new Manifest(getLocation(backupPath, fullSequence), true);
+    }
+
+    synchronized void addDirectory(Path relativePath)
+    {
+        try
+        {
+            out.writeByte(directoryRecord);
+            out.writeUTF(relativePath.toString());
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError("IOException shouldn't occur");
+        }
+    }
+
+    synchronized void addVersion(Path relativePath, BackupPath details, long length, int checksum)
+    {
+        try
+        {
+            Integer id = pathIds.get(relativePath);
+            if (id == null)
+            {
+                id = pathIds.size();
+                pathIds.put(relativePath, id);
+                out.writeByte(pathRecord);
+                out.writeInt(id);
+                out.writeUTF(relativePath.toString());
+            }
+            out.writeByte(versionRecord);
+            out.writeInt(id);
+            out.writeInt(details.getMinorVersion());
+            out.writeBoolean(details.isRemoved());
+            out.writeUTF(details.isRemoved() ? "" : details.getCompression().getId().get());
+            out.writeUTF(details.isRemoved() ? "" : details.getCompression().generateFlags().get());
+            out.writeLong(length);
+            out.writeInt(checksum);
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError("IOException shouldn't occur");
+        }
+    }
+
+    /**
+     * Appends every record added since the last commit and forces it to disk. A new manifest is instead written
+     * beside the old one and moved into place.
+     * @throws IOException Thrown if unable to write the manifest
+     */
+    synchronized void commit() throws IOException
+    {
+        if (pending.size() == 0) return;
+        if (rewrite)
+        {
+            Path temp = location.resolveSibling(location.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                write(channel);
+            }
+            Files.move(temp, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            rewrite = false;
+        }
+        else
+        {
+            try (FileChannel channel = FileChannel.open(location, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+            {
+                write(channel);
+            }
+        }
+        pending.reset();
+    }
+
+    private void write(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,59 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits how much memory concurrent tasks hold at once. A task reserves its estimated peak use before starting and
+ * waits while the reservations of other tasks would take it over budget. A task estimated at more than the whole
+ * budget is allowed to run, but only on its own.
+ */
+public class MemoryBudget
+{
+    private long budget;
+    private long reserved = 0;
+
+    /**
+     * @param budget Maximum total bytes reserved at once
+     */
+    public MemoryBudget(long budget)
+    {
+        this.budget = budget;
+    }
+
+    public synchronized void setBudget(long budget)
+    {
+        this.budget = budget;
+        notifyAll();
+    }
+
+    /**
+     * Waits until bytes can be reserved without going over budget, then reserves them
+     * @param bytes Estimated peak memory use of the task
+     * @return The number of bytes reserved, to be passed to release
+     * @throws InterruptedIOException Thrown if interrupted while waiting
+     */
+    public synchronized long acquire(long bytes) throws InterruptedIOException
+    {
+        bytes = Math.max(0, Math.min(bytes, budget));
+        while (reserved > 0 && reserved + bytes > budget)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for memory");
+            }
+        }
+        reserved += bytes;
+        return bytes;
+    }
+
+    public synchronized void release(long bytes)
+    {
+        reserved -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,55 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Spreads work over time so it averages no more than a set number of bytes a second. Each task reserves the bytes
+ * it's about to process and waits until the tasks before it would have finished at that rate.
+ */
+public class RateLimiter
+{
+    private long bytesPerSecond;
+    private long nextFree = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Maximum average rate. 0 or less is unlimited.
+     */
+    public RateLimiter(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        nextFree = System.nanoTime();
+    }
+
+    /**
+     * Waits until bytes can be processed without going over the rate
+     * @param bytes Number of bytes about to be processed
+     * @throws InterruptedIOException Thrown if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException
+    {
+        long wait;
+        synchronized (this)
+        {
+            if (bytesPerSecond <= 0) return;
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFree);
+            nextFree = start + (long) (bytes * 1e9 / bytesPerSecond);
+            wait = start - now;
+        }
+        if (wait <= 0) return;
+        try
+        {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for rate limit");
+        }
+    }
+}
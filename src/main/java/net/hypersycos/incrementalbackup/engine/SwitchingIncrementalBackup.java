@@ -1,20 +1,28 @@
 package net.hypersycos.incrementalbackup.engine;
 
+import net.hypersycos.incrementalbackup.compression.BlockStore;
 import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.DictionaryScheme;
+import net.hypersycos.incrementalbackup.compression.ZipScheme;
 import net.hypersycos.incrementalbackup.handlers.BinaryHandler;
 import net.hypersycos.incrementalbackup.handlers.ITypeHandler;
 import net.hypersycos.incrementalbackup.util.Pair;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 public class SwitchingIncrementalBackup extends IncrementalBackup
 {
     Map<String, ITypeHandler> FileHandlers = new HashMap<>();
     ITypeHandler defaultHandler = new BinaryHandler();
+    long dictionaryLimit = 0;
+    long streamingThreshold = 256L*1024*1024;
+    //how much of a streamed file is read to choose its compression
+    private static final int streamSample = 64*1024;
 
     public SwitchingIncrementalBackup(Path directory, Path backupPath)
     {
@@ -31,6 +39,47 @@ public class SwitchingIncrementalBackup extends IncrementalBackup
         }
     }
 
+    /**
+     * Sets the handler used for files whose type isn't registered. Backups already made with the old default are
+     * still combined with whichever handler is the default when restoring, so this should only be changed before
+     * the first backup of a full sequence.
+     * @param handler Handler to use. Null stores every unregistered file as a whole copy.
+     */
+    public void setDefaultHandler(ITypeHandler handler)
+    {
+        this.defaultHandler = handler;
+    }
+
+    /**
+     * Compresses the differences of files up to this size with the end of their previous version as a deflate
+     * dictionary, which suits small files that change often. Restoring such a file can't compose its differences
+     * past one compressed this way, so it's best kept for small files.
+     * @param bytes Largest file to use it for. 0, the default, disables it.
+     */
+    public void setDictionaryLimit(long bytes)
+    {
+        this.dictionaryLimit = bytes;
+    }
+
+    /**
+     * Sets the size from which files are backed up, restored and consolidated through their handler's streaming
+     * methods, with the old version rebuilt into a temporary file under the backup path rather than in memory.
+     * Only used for handlers which can stream, such as BinaryHandler; it's the only way to back up files over 2GiB.
+     * @param bytes Smallest file to stream. 256MiB by default.
+     */
+    public void setStreamingThreshold(long bytes)
+    {
+        this.streamingThreshold = bytes;
+    }
+
+    /**
+     * Whether a chain is rebuilt through the handler's streaming methods
+     */
+    private boolean streams(ITypeHandler handler, List<Path> files) throws IOException
+    {
+        return handler != null && handler.canStream() && handler.getCombineMemory(resolve(files)) >= streamingThreshold;
+    }
+
     private ITypeHandler getFileHandler(Path file) throws IOException
     {
         String type = Files.probeContentType(file);
@@ -54,15 +103,83 @@ public class SwitchingIncrementalBackup extends IncrementalBackup
         {
             super.restoreFile(restorePath, files);
         }
+        else if (streams(handler, files))
+        {
+            handler.combineAll(resolve(files), restorePath);
+        }
         else
         {
-            byte[] data = handler.combineAll(files);
+            byte[] data = handler.combineAll(resolve(files));
             File file = restorePath.toFile();
             if (!file.exists() && !file.createNewFile()) throw new IOException("Unable to save "+restorePath);
             Files.write(restorePath, data);
         }
     }
 
+    @Override
+    protected InputStream openChain(List<Path> files) throws IOException
+    {
+        ITypeHandler handler = getFileHandler(files.get(0));
+        if (streams(handler, files))
+        { //rebuilt into a file which goes when the stream is closed
+            Path rebuilt = createTemporaryFile();
+            try
+            {
+                handler.combineAll(resolve(files), rebuilt);
+                return Files.newInputStream(rebuilt, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                Files.deleteIfExists(rebuilt);
+                throw e;
+            }
+        }
+        return handler == null ? super.openChain(files) : new ByteArrayInputStream(handler.combineAll(resolve(files)));
+    }
+
+    @Override
+    protected long getRestoreMemory(List<Path> files) throws IOException
+    {
+        ITypeHandler handler = getFileHandler(files.get(0));
+        if (handler == null || streams(handler, files)) return super.getRestoreMemory(files);
+        return handler.getCombineMemory(resolve(files));
+    }
+
+    @Override
+    protected BackupIndex.Entry consolidateFile(Path backupDir, BackupPath name, List<Path> files) throws IOException
+    {
+        ITypeHandler handler = getFileHandler(files.get(0));
+        if (handler == null || files.size() == 1)
+        { //a chain of just a base copy is copied as stored, without decompressing it
+            return super.consolidateFile(backupDir, name, files);
+        }
+        if (streams(handler, files))
+        {
+            Path rebuilt = createTemporaryFile();
+            try
+            {
+                handler.combineAll(resolve(files), rebuilt);
+                name.setCompression(deduplicate(handler.getInitCompression(readSample(rebuilt))));
+                Path streamed = backupDir.resolve(name.toName());
+                try (OutputStream out = name.getCompression().compress(new BufferedOutputStream(Files.newOutputStream(streamed))))
+                {
+                    Files.copy(rebuilt, out);
+                }
+                return new BackupIndex.Entry(name, streamed, Files.size(streamed), BackupIndex.checksum(streamed));
+            }
+            finally
+            {
+                Files.deleteIfExists(rebuilt);
+            }
+        }
+        byte[] data = handler.combineAll(resolve(files));
+        name.setCompression(deduplicate(handler.getInitCompression(data)));
+        byte[] stored = name.getCompression().compress(data);
+        Path base = backupDir.resolve(name.toName());
+        Files.write(base, stored);
+        return new BackupIndex.Entry(name, base, stored.length, BackupIndex.checksum(stored));
+    }
+
     @Override
     protected void backupFile(Path backupPath, BackupPath name, Path file, List<Path> links) throws IOException
     {
@@ -71,17 +188,31 @@ public class SwitchingIncrementalBackup extends IncrementalBackup
         {
             super.backupFile(backupPath, name, file, links);
         }
+        else if (handler.canStream() && (Files.size(file) >= streamingThreshold || (links != null && links.size() > 0 && streams(handler, links))))
+        {
+            streamFile(handler, name, file, links);
+        }
         else
         {
             byte[] newData = Files.readAllBytes(file);
             if (links == null || links.size() == 0)
             {
-                name.setCompression(handler.getInitCompression(newData));
-                Files.write(backupPath.resolve(name.toName()), name.getCompression().compress(newData));
+                name.setCompression(deduplicate(handler.getInitCompression(newData)));
+                writeBackup(file, name, name.getCompression().compress(newData));
+                getHashIndex().put(file, newData);
+                getVersionCache().put(file, newData);
             }
-            else
+            else if (getHashIndex().matches(file, newData))
             {
-                byte[] oldData = handler.combineAll(links);
+                getVersionCache().put(file, newData);
+            }
+            else
+            { //only replay the chain if the file isn't the same as the newest backed up version, and isn't cached
+                byte[] oldData = getVersionCache().get(file);
+                if (oldData == null)
+                {
+                    oldData = handler.combineAll(resolve(links));
+                }
                 if (super.isDifferent(oldData, newData))
                 {
                     Pair<byte[], CompressionScheme> data = handler.getDifference(oldData, newData);
@@ -93,11 +224,112 @@ public class SwitchingIncrementalBackup extends IncrementalBackup
                             throw new IOException("Backup isn't equivalent to new file: "+file.toString());
                         }
 
-                        name.setCompression(data.second());
-                        Files.write(backupPath.resolve(name.toName()), data.second().compress(data.first()));
+                        CompressionScheme compression = data.second();
+                        if (data.first().length >= BlockStore.minBlockSize)
+                        { //a smaller difference would be a single block, which nothing else is likely to share
+                            compression = deduplicate(compression);
+                        }
+                        if (compression instanceof ZipScheme zip && newData.length <= dictionaryLimit)
+                        {
+                            compression = new DictionaryScheme(zip.getLevel());
+                        }
+                        name.setCompression(compression);
+                        writeBackup(file, name, compression.compress(data.first(), oldData, oldData.length));
                     }
                 }
+                getHashIndex().put(file, newData);
+                getVersionCache().put(file, newData);
+            }
+        }
+    }
+
+    /**
+     * Backs up a file through the handler's streaming methods. The old version is rebuilt into a temporary file, and
+     * the difference is checked by applying it to that copy and comparing the result with the file. A base copy's
+     * compression is chosen from the start of the file, and a difference's from the difference, once it's written.
+     */
+    private void streamFile(ITypeHandler handler, BackupPath name, Path file, List<Path> links) throws IOException
+    {
+        long length = Files.size(file);
+        byte[] hash = getHashIndex().getAlgorithm().hash(file);
+        getVersionCache().remove(file);
+        if (links == null || links.size() == 0)
+        {
+            name.setCompression(deduplicate(handler.getInitCompression(readSample(file))));
+            Path data = createTemporaryFile();
+            try
+            {
+                try (OutputStream out = name.getCompression().compress(new BufferedOutputStream(Files.newOutputStream(data))))
+                {
+                    Files.copy(file, out);
+                }
+                moveBackup(file, name, data);
             }
+            finally
+            {
+                Files.deleteIfExists(data);
+            }
+        }
+        else
+        {
+            HashIndex.Entry indexed = getHashIndex().get(file);
+            if (indexed != null && indexed.matches(length, hash)) return;
+            Path old = createTemporaryFile();
+            Path diff = createTemporaryFile();
+            Path data = createTemporaryFile();
+            try
+            {
+                handler.combineAll(resolve(links), old);
+                if (Files.mismatch(old, file) != -1)
+                {
+                    try (SeekableByteChannel oldData = Files.newByteChannel(old);
+                         SeekableByteChannel newData = Files.newByteChannel(file);
+                         OutputStream out = new BufferedOutputStream(Files.newOutputStream(diff)))
+                    {
+                        handler.getDifference(oldData, newData, out);
+                    }
+                    CompressionScheme compression = handler.getDifferenceCompression(diff);
+                    if (Files.size(diff) >= BlockStore.minBlockSize)
+                    { //as for an array difference, a smaller one would be a single block
+                        compression = deduplicate(compression);
+                    }
+                    name.setCompression(compression);
+                    try (OutputStream out = compression.compress(new BufferedOutputStream(Files.newOutputStream(data))))
+                    {
+                        Files.copy(diff, out);
+                    }
+                    Files.delete(diff);
+                    try (SeekableByteChannel combined = Files.newByteChannel(old, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                         InputStream stored = compression.decompress(new BufferedInputStream(Files.newInputStream(data))))
+                    { //checked from what was stored, so compressing it is checked too
+                        handler.combine(combined, stored);
+                    }
+                    if (Files.mismatch(old, file) != -1)
+                    {
+                        System.out.println("Verification failed for "+file.toString());
+                        throw new IOException("Backup isn't equivalent to new file: "+file.toString());
+                    }
+                    moveBackup(file, name, data);
+                }
+            }
+            finally
+            {
+                Files.deleteIfExists(old);
+                Files.deleteIfExists(diff);
+                Files.deleteIfExists(data);
+            }
+        }
+        getHashIndex().put(file, length, hash);
+    }
+
+    /**
+     * Reads the start of a file, to choose its compression from
+     */
+    private static byte[] readSample(Path file) throws IOException
+    {
+        try (InputStream in = Files.newInputStream(file))
+        {
+            return in.readNBytes(streamSample);
         }
     }
 }
@@ -0,0 +1,77 @@
+package net.hypersycos.incrementalbackup.engine;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the newest reconstructed version of tracked files, so an incremental backup can diff against
+ * it instead of replaying the file's chain. Bounded by a total size in bytes, evicting the least recently used file.
+ */
+public class VersionCache
+{
+    private final LinkedHashMap<Path, byte[]> versions = new LinkedHashMap<>(16, 0.75f, true);
+    private long budget;
+    private long size = 0;
+
+    /**
+     * @param budget Maximum total size of cached versions in bytes. 0 disables the cache.
+     */
+    public VersionCache(long budget)
+    {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the newest version of a file, or null if it isn't cached
+     * @param path path to file
+     */
+    public synchronized byte[] get(Path path)
+    {
+        return versions.get(path);
+    }
+
+    /**
+     * Replaces the cached version of a file, evicting older entries to stay within budget.
+     * Versions larger than the whole budget are not cached.
+     * @param path path to file
+     * @param data The newest version of the file. Must not be modified afterwards.
+     */
+    public synchronized void put(Path path, byte[] data)
+    {
+        remove(path);
+        if (data.length > budget) return;
+        versions.put(path, data);
+        size += data.length;
+        evict();
+    }
+
+    public synchronized void remove(Path path)
+    {
+        byte[] old = versions.remove(path);
+        if (old != null) size -= old.length;
+    }
+
+    public synchronized void clear()
+    {
+        versions.clear();
+        size = 0;
+    }
+
+    public synchronized void setBudget(long budget)
+    {
+        this.budget = budget;
+        evict();
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Path, byte[]>> iterator = versions.entrySet().iterator();
+        while (size > budget && iterator.hasNext())
+        {
+            size -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+}
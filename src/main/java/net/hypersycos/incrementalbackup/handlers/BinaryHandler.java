@@ -1,18 +1,28 @@
 package net.hypersycos.incrementalbackup.handlers;
 
 import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.CompressionSelector;
 import net.hypersycos.incrementalbackup.compression.NoCompress;
 import net.hypersycos.incrementalbackup.compression.ZipScheme;
 import net.hypersycos.incrementalbackup.util.Pair;
 
+import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.Set;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 
 public class BinaryHandler extends ITypeHandler
 {
     final int block_size;
     static final int id_length = 4; //4 = max 1TiB, 3 4GiB, 2 16MiB, assuming block_size=256
     final int compression_threshold;
+    //streamed differences start with this where the removed block count would be, then give that count and every
+    //block id as a long, so they aren't limited by id_length
+    private static final int long_ids = -1;
+    //streamed differences compare this much of each version at a time
+    private static final int stream_window = 1024*1024;
 
     //This handler naively splits the file into blocks of size block_size, and compares the differences between
     //the blocks. This will perform well on files with fixed positions and structures, and poorly on more dynamic files,
@@ -34,109 +44,135 @@ public class BinaryHandler extends ITypeHandler
     public ByteBuffer combine(ByteBuffer oldData, byte[] newData)
     {
         ByteBuffer newBuffer = ByteBuffer.wrap(newData);
-        int num_removed = newBuffer.getInt(); //first 4 bytes represent number of blocks removed
-        int final_block_size = newBuffer.getInt(); //next 4 bytes represent the size of the final block
+        Header header = Header.read(newBuffer);
+        int final_block_size = header.finalBlockSize(); //the size of the final block
         // useful in case the file size doesn't divide neatly into block_size and we don't touch the final block,
         // so we can't calculate from remaining()
-        int length = (int)Math.ceil(oldData.position() / (float)block_size) - num_removed; //new file length, assuming no blocks added
+        int length = (int) (blockCount(oldData.position()) - header.removed()); //new file length, assuming no blocks added
+        int dataEnd = oldData.position(); //end of the data so far, which must survive if the buffer is extended
         while (newBuffer.hasRemaining())
         {
-            int block_id = 0;
-            for (int i = 0; i < id_length; i++)
-            {
-                block_id += Byte.toUnsignedInt(newBuffer.get()) << 8*(id_length-i-1);
-            }
-
+            int block_id = Math.toIntExact(readBlockId(newBuffer, header.longIds()));
             int my_block_size = Math.min(newBuffer.remaining(), block_size);
             if (block_id >= length)
             {
                 length = block_id+1;
             }
 
-            if (length * block_size > oldData.capacity())
+            int block_end = block_id*block_size + my_block_size;
+            if (block_end > oldData.capacity())
             {
-                ByteBuffer temp = ByteBuffer.allocate(oldData.capacity() * 2);
-                oldData.position(Math.min(length * block_size, oldData.capacity()));
-                oldData.flip();
-                temp.put(oldData);
-                oldData = temp;
+                oldData.position(Math.min(dataEnd, oldData.capacity()));
+                oldData = ensureCapacity(oldData, block_end);
             }
-
-            byte[] block = new byte[my_block_size];
-            newBuffer.get(block, 0, my_block_size);
-            oldData.put(block_id*block_size, block);
-            oldData.position(0);
-            //reset to position 0 so we index bytebuffer correctly
+            //copied straight out of the instructions, using absolute indexes so the position doesn't matter
+            oldData.put(block_id*block_size, newData, newBuffer.position(), my_block_size);
+            newBuffer.position(newBuffer.position() + my_block_size);
+            dataEnd = Math.max(dataEnd, block_end);
         }
         oldData.position((length-1)*block_size+final_block_size);
         return oldData;
     }
 
     @Override
-    public Pair<byte[], CompressionScheme> getDifference(byte[] oldData, byte[] newData)
+    public int getCombinedLength(ByteBuffer oldData, byte[] newData)
     {
-        ByteBuffer diffs = ByteBuffer.allocate(Math.max(oldData.length,newData.length)*2 + 8);
-        //this buffer should? always be big enough to avoid overflow
-        ByteBuffer oldBuffer = ByteBuffer.wrap(oldData);
         ByteBuffer newBuffer = ByteBuffer.wrap(newData);
+        Header header = Header.read(newBuffer);
+        int final_block_size = header.finalBlockSize();
+        int length = (int) (blockCount(oldData.position()) - header.removed());
+        while (newBuffer.hasRemaining())
+        { //only the block ids are needed, so the blocks themselves are skipped
+            int block_id = Math.toIntExact(readBlockId(newBuffer, header.longIds()));
+            newBuffer.position(newBuffer.position() + Math.min(newBuffer.remaining(), block_size));
+            length = Math.max(length, block_id+1);
+        }
+        return Math.max(0, (length-1)*block_size+final_block_size);
+    }
+
+    private long blockCount(long dataLength)
+    {
+        return (dataLength + block_size - 1) / block_size;
+    }
+
+    private static long readBlockId(ByteBuffer buffer, boolean long_block_ids)
+    {
+        if (long_block_ids) return buffer.getLong();
+        long block_id = 0;
+        for (int i = 0; i < id_length; i++)
+        {
+            block_id += (long) Byte.toUnsignedInt(buffer.get()) << 8*(id_length-i-1);
+        }
+        return block_id;
+    }
+
+    /**
+     * The start of a difference
+     * @param removed Number of blocks removed from the end of the old version
+     * @param finalBlockSize Size of the new version's last block
+     * @param longIds Whether block ids are longs, as in streamed differences
+     */
+    private record Header(long removed, int finalBlockSize, boolean longIds)
+    {
+        static Header read(ByteBuffer buffer)
+        {
+            int num_removed = buffer.getInt();
+            if (num_removed == long_ids) return new Header(buffer.getLong(), buffer.getInt(), true);
+            return new Header(num_removed, buffer.getInt(), false);
+        }
+
+        static Header read(DataInputStream in) throws IOException
+        {
+            int num_removed = in.readInt();
+            if (num_removed == long_ids) return new Header(in.readLong(), in.readInt(), true);
+            return new Header(num_removed, in.readInt(), false);
+        }
+    }
+
+    @Override
+    public Pair<byte[], CompressionScheme> getDifference(byte[] oldData, byte[] newData)
+    {
         int num_removed = 0; //assume either block size is the same or greater
         if (oldData.length > newData.length)
         { //if the older file is longer, compare the block counts of both
-            int oldSize = (int)Math.ceil(oldData.length / (float)block_size);
-            int newSize = (int)Math.ceil(newData.length / (float)block_size);
-            num_removed = oldSize - newSize;
+            num_removed = (int) (blockCount(oldData.length) - blockCount(newData.length));
         }
-        diffs.putInt(num_removed); //store number of removed blocks, so combine can correctly adjust size
+        //size of the last block of the new file, or block_size if it's empty
+        int final_block_size = newData.length == 0 ? block_size : (newData.length - 1) % block_size + 1;
+        BlockWriter diffs = new BlockWriter();
+        diffs.writeInt(num_removed); //store number of removed blocks, so combine can correctly adjust size
         // and so there is a difference between e.g. nulled and removed.
-        diffs.putInt(0); //value irrelevant, just reserving the space for final_block_size to be added.
+        diffs.writeInt(final_block_size);
+
+        int common = Math.min(oldData.length, newData.length);
         int i = 0;
-        int final_block_size = block_size;
-        while (newBuffer.hasRemaining() && oldBuffer.hasRemaining())
-        { //comparing blocks of both files
-            //final blocks can have different sizes, so must treat both separately
-            int new_size = Math.min(block_size, newBuffer.remaining());
-            final_block_size = new_size; //always set final_block_size, since the last block will be the last to set it
-            byte[] newBlock = new byte[new_size+id_length];
-            int old_size = Math.min(block_size, oldBuffer.remaining());
-            byte[] oldBlock = new byte[old_size];
-            newBuffer.get(newBlock, id_length, new_size);
-            oldBuffer.get(oldBlock, 0, old_size);
-            if (!memcmp(newBlock, id_length, oldBlock, 0, new_size))
-            { //if the blocks are different, store block id
-                for (int j = 0; j < id_length; j++)
+        while ((long) i * block_size < newData.length)
+        {
+            int start = i * block_size;
+            if (start < common)
+            { //skip every whole block before the first byte that differs, in one intrinsic comparison
+                int mismatch = Arrays.mismatch(oldData, start, common, newData, start, common);
+                int next = mismatch == -1 ? common / block_size : (start + mismatch) / block_size;
+                if (next > i)
                 {
-                    newBlock[j] = (byte) (i >> 8*(id_length-j-1));
+                    i = next;
+                    continue;
                 }
-                //then store the new block
-                diffs.put(newBlock);
             }
-            i += 1;
-        }
-        while (newBuffer.hasRemaining())
-        { //only occurs if new file contains more blocks
-            int new_size = Math.min(block_size, newBuffer.remaining());
-            final_block_size = new_size; //always set final_block_size, since the last block will be the last to set it
-            byte[] newBlock = new byte[new_size+id_length];
-            newBuffer.get(newBlock, id_length, new_size);
-            // trivially, the block has "changed"
-            for (int j = 0; j < id_length; j++)
-            {
-                newBlock[j] = (byte) (i >> 8*(id_length-j-1));
+            //final blocks can have different sizes, so a block is only unchanged if both have the same bytes
+            int new_size = Math.min(block_size, newData.length - start);
+            if (start >= oldData.length
+                    || !Arrays.equals(oldData, start, Math.min(start + block_size, oldData.length), newData, start, start + new_size))
+            { //store the block id, then the new block
+                diffs.writeBlock(i, newData, start, new_size);
             }
-            diffs.put(newBlock);
             i += 1;
         }
-        //store eof position, then store final_block_size
-        int temp = diffs.position();
-        diffs.position(4);
-        diffs.putInt(final_block_size);
-        diffs.position(temp);
-        //trim array to fit the file size exactly
-        byte[] toReturn = bufferToTrimmedArray(diffs);
+        byte[] toReturn = diffs.toByteArray();
         //we compress above 1KiB
         if (toReturn.length >= compression_threshold)
         {
-            return new Pair<>(toReturn, new ZipScheme());
+            return new Pair<>(toReturn, CompressionSelector.select(toReturn));
         }
         else
         {
@@ -144,12 +180,213 @@ public class BinaryHandler extends ITypeHandler
         }
     }
 
+    @Override
+    public boolean canStream()
+    {
+        return true;
+    }
+
+    @Override
+    public CompressionScheme getDifferenceCompression(Path diff) throws IOException
+    { //as for an array difference, only compressed above the threshold
+        return Files.size(diff) >= compression_threshold ? super.getDifferenceCompression(diff) : new NoCompress();
+    }
+
+    /**
+     * Compares the versions a window of blocks at a time, so only two windows are held whatever the file's size.
+     * The removed block count and block ids are written as longs.
+     */
+    @Override
+    public void getDifference(SeekableByteChannel oldData, SeekableByteChannel newData, OutputStream diff) throws IOException
+    {
+        long old_length = oldData.size();
+        long new_length = newData.size();
+        long num_removed = old_length > new_length ? blockCount(old_length) - blockCount(new_length) : 0;
+        int final_block_size = new_length == 0 ? block_size : (int) ((new_length - 1) % block_size + 1);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(diff, stream_window));
+        out.writeInt(long_ids);
+        out.writeLong(num_removed);
+        out.writeInt(final_block_size);
+
+        int window = Math.max(1, stream_window / block_size) * block_size;
+        ByteBuffer old_window = ByteBuffer.allocate(window);
+        ByteBuffer new_window = ByteBuffer.allocate(window);
+        for (long window_start = 0; window_start < new_length; window_start += window)
+        { //the new version is read no further than its length when the difference started
+            int new_read = fill(newData, new_window, (int) Math.min(window, new_length - window_start));
+            int old_read = fill(oldData, old_window, window);
+            if (new_read == 0) break;
+            for (int start = 0; start < new_read; start += block_size)
+            {
+                int new_size = Math.min(block_size, new_read - start);
+                int old_size = Math.min(block_size, old_read - start);
+                if (old_size <= 0
+                        || !Arrays.equals(old_window.array(), start, start + old_size, new_window.array(), start, start + new_size))
+                { //store the block id, then the new block
+                    out.writeLong((window_start + start) / block_size);
+                    out.write(new_window.array(), start, new_size);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads from a channel until length bytes have been read into the start of buffer, or the channel ends
+     * @return Bytes read
+     */
+    private static int fill(SeekableByteChannel channel, ByteBuffer buffer, int length) throws IOException
+    {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0) break;
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Writes each block in place, joining consecutive blocks into one write. Reads either kind of difference.
+     */
+    @Override
+    public void combine(SeekableByteChannel data, InputStream diff) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(diff, stream_window));
+        Header header = Header.read(in);
+        long length = blockCount(data.size()) - header.removed(); //new file length, assuming no blocks added
+        ByteBuffer pending = ByteBuffer.allocate(Math.max(1, stream_window / block_size) * block_size);
+        long pending_start = 0;
+        int first;
+        while ((first = in.read()) >= 0)
+        {
+            long block_id = first;
+            for (int i = 1; i < (header.longIds() ? 8 : id_length); i++)
+            {
+                block_id = (block_id << 8) | in.readUnsignedByte();
+            }
+            if (pending.position() > 0 && (pending_start + pending.position() != block_id * block_size || pending.remaining() < block_size))
+            {
+                write(data, pending, pending_start);
+            }
+            if (pending.position() == 0) pending_start = block_id * block_size;
+            int my_block_size = in.readNBytes(pending.array(), pending.position(), block_size);
+            pending.position(pending.position() + my_block_size);
+            length = Math.max(length, block_id + 1);
+        }
+        write(data, pending, pending_start);
+        data.truncate(Math.max(0, (length - 1) * block_size + header.finalBlockSize()));
+    }
+
+    private static void write(SeekableByteChannel data, ByteBuffer pending, long position) throws IOException
+    {
+        pending.flip();
+        data.position(position);
+        while (pending.hasRemaining())
+        {
+            data.write(pending);
+        }
+        pending.clear();
+    }
+
+    /**
+     * A block of a difference, left where it is
+     */
+    private record BlockSource(byte[] diff, int start, int length){}
+
+    /**
+     * Keeps the last version of each block written by the differences. Blocks cut off by a later difference's
+     * removed count are dropped, since a difference which lengthens a file again always rewrites every block past
+     * the old end.
+     */
+    @Override
+    public byte[] compose(ByteBuffer oldData, List<byte[]> diffs)
+    {
+        int base_blocks = (int) blockCount(oldData.position());
+        int length = base_blocks;
+        int final_block_size = block_size;
+        TreeMap<Integer, BlockSource> blocks = new TreeMap<>();
+        for (byte[] diff : diffs)
+        {
+            ByteBuffer diffBuffer = ByteBuffer.wrap(diff);
+            Header header = Header.read(diffBuffer);
+            length = (int) Math.max(0, length - header.removed());
+            final_block_size = header.finalBlockSize();
+            blocks.tailMap(length, true).clear();
+            while (diffBuffer.hasRemaining())
+            {
+                int block_id = Math.toIntExact(readBlockId(diffBuffer, header.longIds()));
+                int my_block_size = Math.min(diffBuffer.remaining(), block_size);
+                blocks.put(block_id, new BlockSource(diff, diffBuffer.position(), my_block_size));
+                diffBuffer.position(diffBuffer.position() + my_block_size);
+                length = Math.max(length, block_id+1);
+            }
+        }
+        BlockWriter composed = new BlockWriter();
+        composed.writeInt(Math.max(0, base_blocks - length));
+        composed.writeInt(final_block_size);
+        for (Map.Entry<Integer, BlockSource> entry : blocks.entrySet())
+        {
+            BlockSource block = entry.getValue();
+            if (block.length() < block_size && !entry.getKey().equals(blocks.lastKey()))
+            { //a short block has to be the last one in a difference, as combine takes its size from what's left
+                return null;
+            }
+            composed.writeBlock(entry.getKey(), block.diff(), block.start(), block.length());
+        }
+        return composed.toByteArray();
+    }
+
+    /**
+     * Growable output for a difference, which copies blocks straight from where they're found
+     */
+    private static class BlockWriter
+    {
+        private byte[] buffer = new byte[64];
+        private int size = 0;
+
+        void writeInt(int value)
+        {
+            ensureCapacity(4);
+            writeDigits(value, 4);
+        }
+
+        void writeBlock(int block_id, byte[] source, int start, int length)
+        {
+            ensureCapacity(id_length + length);
+            writeDigits(block_id, id_length);
+            System.arraycopy(source, start, buffer, size, length);
+            size += length;
+        }
+
+        private void writeDigits(int value, int numDigits)
+        {
+            for (int j = 0; j < numDigits; j++)
+            {
+                buffer[size++] = (byte) (value >> 8*(numDigits-j-1));
+            }
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if (size + extra > buffer.length)
+            {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(size + extra, buffer.length * 2L)));
+            }
+        }
+
+        byte[] toByteArray()
+        {
+            return buffer.length == size ? buffer : Arrays.copyOf(buffer, size);
+        }
+    }
+
     @Override
     public CompressionScheme getInitCompression(byte[] data)
     {
         if (data.length >= compression_threshold)
         {
-            return new ZipScheme();
+            return CompressionSelector.select(data);
         }
         else
         {
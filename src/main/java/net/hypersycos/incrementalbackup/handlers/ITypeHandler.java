@@ -1,13 +1,21 @@
 package net.hypersycos.incrementalbackup.handlers;
 
+import net.hypersycos.incrementalbackup.compression.CompressedFile;
 import net.hypersycos.incrementalbackup.compression.CompressionScheme;
-import net.hypersycos.incrementalbackup.engine.BackupPath;
+import net.hypersycos.incrementalbackup.compression.CompressionSelector;
 import net.hypersycos.incrementalbackup.util.Pair;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -22,39 +30,264 @@ public abstract class ITypeHandler
      * @return a ByteBuffer containing the modified data (usually the same as oldData). Different if overflow occurs.
      */
     public abstract ByteBuffer combine(ByteBuffer oldData, byte[] newData);
+    /**
+     * Composes a chain of differences into one, which gives the same result when combined with oldData as combining
+     * each of them in turn. Only the length and any header of oldData are read, never the data being patched, so
+     * old incrementals can be squashed without rebuilding the versions in between.
+     * @param oldData ByteBuffer containing the data the first difference applies to, positioned at its end. Its
+     *                position is unchanged on return.
+     * @param diffs Differences in the order they were made
+     * @return The composed difference, or null if the handler can't compose these differences
+     */
+    public byte[] compose(ByteBuffer oldData, List<byte[]> diffs)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the length of the data combine will produce, so buffers can be allocated at their final size.
+     * Handlers which can't tell from the instructions fall back to getInitBufferSize.
+     * @param oldData ByteBuffer containing the full data to modify, positioned at the end of the data. Not modified.
+     * @param newData A byte-array containing the instructions for modification
+     * @return Length in bytes of the modified data, or an upper bound on it
+     */
+    public int getCombinedLength(ByteBuffer oldData, byte[] newData)
+    {
+        return Math.max(oldData.position(), getInitBufferSize(oldData.position()));
+    }
+
+    /**
+     * Only used by handlers which don't override getCombinedLength
+     */
     public int getInitBufferSize(int initDataLength)
     {
         return Math.min(initDataLength*100, 100*1024*1024);
     }
-    //the buffer's position must be at the end of the file after combine.
-    public byte[] combineAll(List<Path> files) throws IOException
+
+    /**
+     * Estimates the peak memory combineAll needs to rebuild a file from a chain of backup files
+     * @param files Backup files, from the base copy to the newest delta
+     * @return Estimated bytes
+     * @throws IOException Thrown if unable to read the size of a backup file
+     */
+    public long getCombineMemory(List<CompressedFile> files) throws IOException
+    {
+        if (files == null || files.size() == 0) return 0;
+        long base = files.get(0).getExpandedSize();
+        if (files.size() == 1) return base;
+        long deltas = 0;
+        for (CompressedFile file : files.subList(1, files.size()))
+        {
+            deltas += file.getExpandedSize();
+        }
+        //the working buffer has some room to grow, every delta is held to be composed, and the composed delta is
+        //at most as big as all of them
+        return base + base / growthDivisor + 2 * deltas;
+    }
+
+    /**
+     * Whether this handler's streaming getDifference and combine hold only a bounded part of the file in memory, so
+     * they can be used for files too big for the byte array ones. Handlers which don't override them get defaults
+     * which read the whole file into an array.
+     */
+    public boolean canStream()
+    {
+        return false;
+    }
+
+    /**
+     * Streaming counterpart of getDifference. The difference must be one combine can also apply to an array.
+     * @param oldData The old version, positioned at its start
+     * @param newData The new version, positioned at its start
+     * @param diff Where the difference is written. Not closed.
+     * @throws IOException Thrown if unable to read either version, or write the difference
+     */
+    public void getDifference(SeekableByteChannel oldData, SeekableByteChannel newData, OutputStream diff) throws IOException
+    {
+        Pair<byte[], CompressionScheme> data = getDifference(readAll(oldData), readAll(newData));
+        if (data != null) diff.write(data.first());
+    }
+
+    /**
+     * Chooses how to store a difference written by the streaming getDifference. The default samples it, as the
+     * array getDifference implementations choose for theirs.
+     * @param diff The uncompressed difference
+     * @throws IOException Thrown if unable to read the difference
+     */
+    public CompressionScheme getDifferenceCompression(Path diff) throws IOException
+    {
+        return CompressionSelector.select(diff);
+    }
+
+    /**
+     * Streaming counterpart of combine, which patches a file in place
+     * @param data The file to patch. Afterwards it holds exactly the patched data.
+     * @param diff The decompressed difference. Not closed.
+     * @throws IOException Thrown if unable to read the difference, or read or write the file
+     */
+    public void combine(SeekableByteChannel data, InputStream diff) throws IOException
+    {
+        data.position(0);
+        byte[] old = readAll(data);
+        byte[] instructions = diff.readAllBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(old);
+        buffer.position(old.length);
+        buffer = combine(ensureCapacity(buffer, getCombinedLength(buffer, instructions)), instructions);
+        buffer.flip();
+        data.position(0);
+        while (buffer.hasRemaining())
+        {
+            data.write(buffer);
+        }
+        data.truncate(buffer.limit());
+    }
+
+    /**
+     * Rebuilds a file from its chain straight into target, applying one difference at a time with the streaming
+     * combine, so a handler which can stream never holds the file in memory
+     * @param files Backup files, from the base copy to the newest delta
+     * @param target Where to write the rebuilt file, replacing anything there
+     * @throws IOException Thrown if unable to read a backup file, or write target
+     */
+    public void combineAll(List<CompressedFile> files, Path target) throws IOException
+    {
+        try (InputStream base = files.get(0).open())
+        {
+            Files.copy(base, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            for (CompressedFile file : files.subList(1, files.size()))
+            {
+                //only the end of the previous version is used, so only that is read
+                byte[] previous = readTail(channel, file.compression().getPreviousWindow());
+                try (InputStream diff = file.open(previous, previous.length))
+                {
+                    combine(channel, diff);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads up to length bytes from the end of a channel, without moving its position
+     */
+    private static byte[] readTail(FileChannel channel, int length) throws IOException
+    {
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(channel.size(), length));
+        long start = channel.size() - tail.capacity();
+        while (tail.hasRemaining())
+        {
+            if (channel.read(tail, start + tail.position()) < 0) break;
+        }
+        return tail.array();
+    }
+
+    /**
+     * Reads a channel from its position to its end
+     * @throws IOException Thrown if unable to read it, or it's too big for an array
+     */
+    protected static byte[] readAll(SeekableByteChannel channel) throws IOException
+    {
+        long length = channel.size() - channel.position();
+        if (length > Integer.MAX_VALUE - 8) throw new IOException("Too big to hold in memory: "+length+" bytes");
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0) break;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Applies differences to a buffer, composing them first where the handler can
+     * @param buffer Buffer positioned at the end of its data
+     * @return The patched buffer, positioned at the end of its data
+     */
+    private ByteBuffer combineAll(ByteBuffer buffer, List<byte[]> diffs)
+    {
+        if (diffs.size() > 1)
+        {
+            byte[] composed = compose(buffer, diffs);
+            if (composed != null) diffs = List.of(composed);
+        }
+        for (byte[] diff : diffs)
+        {
+            buffer = combine(ensureCapacity(buffer, getCombinedLength(buffer, diff)), diff);
+        }
+        return buffer;
+    }
+
+    //the working buffer grows by at least 1/growthDivisor, so a chain of growing deltas doesn't copy it every step
+    private static final int growthDivisor = 8;
+
+    /**
+     * Rebuilds a file from its chain. Chains of more than one difference are composed into one where the handler
+     * can, so the file is only patched once. The working buffer starts as the base copy itself, and is only
+     * reallocated when a difference makes the file longer than it can hold, sized from getCombinedLength.
+     * A difference compressed against the previous version can only be read once the differences before it have
+     * been applied, so composing stops there.
+     * @param files Backup files, from the base copy to the newest delta
+     * @return The rebuilt file, or null if files is empty
+     * @throws IOException Thrown if unable to read a backup file
+     */
+    public byte[] combineAll(List<CompressedFile> files) throws IOException
     {
         if (files == null || files.size() == 0) return null;
-        BackupPath initMeta = new BackupPath(files.get(0).getFileName().toString());
-        byte[] initData = initMeta.getCompression().decompress(Files.readAllBytes(files.get(0)));
+        byte[] initData = files.get(0).read();
         if (files.size() == 1) return initData;
 
-        ByteBuffer buffer = ByteBuffer.allocate(getInitBufferSize(initData.length));
-        buffer.put(initData);
-        for (Path file : files.subList(1, files.size()))
+        ByteBuffer buffer = ByteBuffer.wrap(initData);
+        buffer.position(initData.length);
+        List<byte[]> diffs = new ArrayList<>(files.size() - 1);
+        for (CompressedFile file : files.subList(1, files.size()))
+        {
+            if (file.compression().getPreviousWindow() > 0)
+            {
+                buffer = combineAll(buffer, diffs);
+                diffs.clear();
+                diffs.add(file.read(buffer.array(), buffer.position()));
+            }
+            else
+            {
+                diffs.add(file.read());
+            }
+        }
+        buffer = combineAll(buffer, diffs);
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == buffer.array().length)
         {
-            BackupPath meta = new BackupPath(file.getFileName().toString());
-            buffer = combine(buffer, meta.getCompression().decompress(Files.readAllBytes(file)));
+            return buffer.array();
         }
-        buffer.flip();
-        byte[] toReturn = new byte[buffer.limit()];
-        buffer.get(toReturn, 0, buffer.limit());
-        return toReturn;
+        return bufferToTrimmedArray(buffer);
     }
 
     public boolean verify(byte[] oldData, byte[] diff, byte[] newData)
     {
-        ByteBuffer buffer = ByteBuffer.allocate(getInitBufferSize(oldData.length));
+        ByteBuffer wrapped = ByteBuffer.wrap(oldData);
+        wrapped.position(oldData.length);
+        //combine may modify the buffer in place, so oldData is copied rather than wrapped
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(oldData.length, getCombinedLength(wrapped, diff)));
         buffer.put(oldData);
         ByteBuffer combined = combine(buffer, diff);
         return this.verify(combined, ByteBuffer.wrap(newData));
     }
 
+    /**
+     * Makes sure a buffer can hold length bytes, copying its data up to its position into a larger one if not
+     * @param buffer Buffer positioned at the end of its data
+     * @param length Number of bytes the buffer must be able to hold
+     * @return buffer, or the larger copy
+     */
+    protected static ByteBuffer ensureCapacity(ByteBuffer buffer, int length)
+    {
+        if (length <= buffer.capacity()) return buffer;
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(length, buffer.capacity() + (long) buffer.capacity() / growthDivisor));
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
     protected boolean verify(ByteBuffer combined, ByteBuffer newData)
     {
         combined.flip();
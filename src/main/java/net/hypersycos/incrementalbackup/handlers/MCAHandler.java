@@ -1,8 +1,10 @@
 package net.hypersycos.incrementalbackup.handlers;
 
+import net.hypersycos.incrementalbackup.compression.CompressedFile;
 import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.CompressionSelector;
 import net.hypersycos.incrementalbackup.compression.NoCompress;
-import net.hypersycos.incrementalbackup.compression.ZipScheme;
+import net.hypersycos.incrementalbackup.compression.Zlib;
 import net.hypersycos.incrementalbackup.util.Pair;
 
 import java.io.ByteArrayInputStream;
@@ -10,11 +12,34 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.zip.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class MCAHandler extends ITypeHandler
 {
     BinaryHandler binaryHandler = new BinaryHandler(16, 1024);
+    final boolean structuralDiff;
+
+    //set on a chunk's compression type in the differences when its difference is an NBTDiff rather than binary
+    private static final byte structuralFlag = (byte) 0x80;
+    //compression type in the differences when a chunk's stored bytes were diffed, followed by its real type
+    private static final byte storedDiff = 0;
+
+    public MCAHandler()
+    {
+        this(false);
+    }
+
+    /**
+     * @param structuralDiff Whether to diff chunks by their NBT tags, falling back to comparing bytes for any chunk
+     *                       which can't be. Differences made either way can always be restored.
+     */
+    public MCAHandler(boolean structuralDiff)
+    {
+        this.structuralDiff = structuralDiff;
+    }
 
     record ChunkLocation(int offset, byte sectorCount){
         @Override
@@ -35,25 +60,82 @@ public class MCAHandler extends ITypeHandler
         }
     }
 
+    /**
+     * One chunk's entry in a region's differences
+     * @param compressionType The chunk's compression type as written, which only describes the difference if the
+     *                        old region has the chunk
+     * @param payload The chunk as stored, or its compressed difference if the old region has the chunk. Null if
+     *                the chunk is unchanged or removed.
+     */
+    private record Instruction(int slot, ChunkLocation location, int timestamp, byte compressionType, byte[] payload){}
+
+    /**
+     * A chunk's difference from the old region's chunk
+     * @param compressionType Compression type the patched chunk is stored with
+     * @param diff Decompressed difference
+     */
+    record ChunkPatch(Kind kind, byte compressionType, byte[] diff)
+    {
+        enum Kind
+        {
+            BINARY, //BinaryHandler difference of the decompressed chunk
+            STRUCTURAL, //NBTDiff of the decompressed chunk
+            STORED //BinaryHandler difference of the chunk as stored, for chunks which can't be recompressed
+        }
+    }
+
     @Override
     public ByteBuffer combine(ByteBuffer oldData, byte[] newData)
     {
         Set<Integer> modified = new HashSet<>();
-        ByteBuffer swap = ByteBuffer.allocate(oldData.capacity());
+        ByteBuffer swap = ByteBuffer.allocate(getCombinedLength(oldData, newData));
         ByteBuffer newBuffer = ByteBuffer.wrap(newData);
         Pair<ChunkLocation[], int[]> oldHeader = getHeader(oldData);
-        int end = 0;
+        List<Instruction> instructions = new ArrayList<>();
+        List<Integer> patched = new ArrayList<>();
+        byte[][] oldChunks = new byte[1024][];
+        byte[] oldTypes = new byte[1024];
         while(newBuffer.hasRemaining())
         {
-            int i = newBuffer.getInt();
+            Instruction instruction = readInstruction(newBuffer, oldHeader.second());
+            int i = instruction.slot();
+            if (instruction.payload() != null && oldHeader.first()[i].sectorCount != 0)
+            {
+                Pair<Pair<Integer, Byte>, byte[]> chunkData = getChunk(i, oldHeader, oldData);
+                oldChunks[i] = chunkData.second();
+                oldTypes[i] = chunkData.first().second();
+                patched.add(i);
+            }
+            instructions.add(instruction);
+        }
+
+        //patching is spread across the pool, then the region is written in the same order as the differences
+        byte[][] rebuilt = new byte[1024][];
+        byte[] rebuiltTypes = new byte[1024];
+        Instruction[] bySlot = new Instruction[1024];
+        for (Instruction instruction : instructions)
+        {
+            bySlot[instruction.slot()] = instruction;
+        }
+        forEachSlot(patched, (i) -> {
+            ChunkPatch patch = readPatch(bySlot[i].compressionType(), bySlot[i].payload());
+            rebuilt[i] = applyPatch(oldChunks[i], oldTypes[i], patch);
+            rebuiltTypes[i] = patch.compressionType();
+        });
+
+        int end = 0;
+        for (Instruction instruction : instructions)
+        {
+            int i = instruction.slot();
             modified.add(i);
-            ChunkLocation locationData = new ChunkLocation(newBuffer.getInt(), newBuffer.get());
-            int timestamp = newBuffer.getInt();
+            ChunkLocation locationData = instruction.location();
+            int timestamp = instruction.timestamp();
             if (timestamp == oldHeader.second()[i])
             {
                 Pair<Pair<Integer, Byte>, byte[]> chunk = getChunk(i, oldHeader, oldData);
                 if (locationData.sectorCount > 0)
                 {
+                    swap = fit(swap, locationData.offset * 4096 + 5 + chunk.second().length);
                     swap.putInt(locationData.offset * 4096, chunk.first().first());
                     swap.put(locationData.offset * 4096 + 4, chunk.first().second());
                     swap.put(locationData.offset * 4096 + 5, chunk.second());
@@ -66,28 +148,10 @@ public class MCAHandler extends ITypeHandler
             }
             else if (locationData.sectorCount() > 0)
             {
-                int chunk_length_bytes = newBuffer.getInt();
-                byte decompressionType = newBuffer.get();
-                byte[] newChunk;
-                if (oldHeader.first()[i].sectorCount == 0)
-                {
-                    newChunk = new byte[chunk_length_bytes];
-                    newBuffer.get(newChunk, 0, chunk_length_bytes);
-                }
-                else
-                {
-                    byte[] diff = new byte[chunk_length_bytes];
-                    newBuffer.get(diff, 0, chunk_length_bytes);
-                    byte[] new_chunk = decompressChunk(diff, (byte)2);
-
-                    Pair<Pair<Integer, Byte>, byte[]> chunkData = getChunk(i, oldHeader, oldData);
-                    byte[] old_chunk = decompressChunk(chunkData.second(), chunkData.first().second());
-                    ByteBuffer temp = ByteBuffer.allocate(Math.max(old_chunk.length, new_chunk.length) * 2);
-                    temp.put(old_chunk);
-                    newChunk = compressChunk(bufferToTrimmedArray(binaryHandler.combine(temp, new_chunk)), decompressionType);
-                }
+                byte[] newChunk = rebuilt[i] == null ? instruction.payload() : rebuilt[i];
+                swap = fit(swap, locationData.offset * 4096 + 5 + newChunk.length);
                 swap.putInt(locationData.offset * 4096, newChunk.length+1);
-                swap.put(locationData.offset * 4096 + 4, decompressionType);
+                swap.put(locationData.offset * 4096 + 4, rebuilt[i] == null ? instruction.compressionType() : rebuiltTypes[i]);
                 swap.put(locationData.offset * 4096 + 5, newChunk);
                 int chunk_end = locationData.offset + locationData.sectorCount;
                 if (chunk_end > end)
@@ -111,6 +175,7 @@ public class MCAHandler extends ITypeHandler
             if (locationData != 0)
             {
                 Pair<Pair<Integer, Byte>, byte[]> chunk = getChunk(i, oldHeader, oldData);
+                swap = fit(swap, oldHeader.first()[i].offset * 4096 + 5 + chunk.second().length);
                 swap.putInt(oldHeader.first()[i].offset * 4096, chunk.first().first());
                 swap.put(oldHeader.first()[i].offset * 4096 + 4, chunk.first().second());
                 swap.put(oldHeader.first()[i].offset * 4096 + 5, chunk.second());
@@ -125,10 +190,209 @@ public class MCAHandler extends ITypeHandler
         return swap;
     }
 
+    /**
+     * Rebuilds a region from its chain one chunk at a time, instead of rebuilding the whole region after every
+     * difference. Each chunk's instructions are replayed on its own, keeping a patched chunk decompressed from one
+     * difference to the next, so it's only compressed once, when the region is written. Chunks are replayed across
+     * the pool when called from one. The region is the same as combining each difference in turn.
+     */
+    @Override
+    public byte[] combineAll(List<CompressedFile> files) throws IOException
+    {
+        if (files == null || files.size() < 2) return super.combineAll(files);
+        for (CompressedFile file : files.subList(1, files.size()))
+        { //a difference compressed against the previous version can't be read until that version is rebuilt
+            if (file.compression().getPreviousWindow() > 0) return super.combineAll(files);
+        }
+        byte[] initData = files.get(0).read();
+        ByteBuffer base = ByteBuffer.wrap(initData);
+        Pair<ChunkLocation[], int[]> baseHeader = getHeader(base);
+        ChunkLocation[] locations = baseHeader.first().clone();
+        int[] timestamps = baseHeader.second().clone();
+        List<List<Instruction>> instructions = new ArrayList<>(Collections.nCopies(1024, null));
+        for (CompressedFile file : files.subList(1, files.size()))
+        {
+            ByteBuffer diff = ByteBuffer.wrap(file.read());
+            while (diff.hasRemaining())
+            {
+                Instruction instruction = readInstruction(diff, timestamps);
+                int i = instruction.slot();
+                if (instructions.get(i) == null) instructions.set(i, new ArrayList<>());
+                instructions.get(i).add(instruction);
+                locations[i] = instruction.location();
+                timestamps[i] = instruction.timestamp();
+            }
+        }
+
+        //every chunk is read out of the base region up front, so the replay doesn't share its buffer
+        byte[][] chunks = new byte[1024][];
+        byte[] types = new byte[1024];
+        List<Integer> replayed = new ArrayList<>();
+        for (int i = 0; i < 1024; i++)
+        {
+            Pair<Pair<Integer, Byte>, byte[]> chunk = getChunk(i, baseHeader, base);
+            chunks[i] = chunk.second();
+            types[i] = chunk.first().second();
+            if (instructions.get(i) != null) replayed.add(i);
+        }
+        forEachSlot(replayed, (i) -> {
+            boolean present = baseHeader.first()[i].sectorCount != 0;
+            int timestamp = baseHeader.second()[i];
+            byte[] plain = null; //the decompressed chunk, once it's been patched
+            for (Instruction instruction : instructions.get(i))
+            {
+                if (instruction.timestamp() == timestamp)
+                { //moved, but the chunk is the same
+                }
+                else if (instruction.location().sectorCount() > 0)
+                {
+                    if (present)
+                    {
+                        ChunkPatch patch = readPatch(instruction.compressionType(), instruction.payload());
+                        if (patch.kind() == ChunkPatch.Kind.STORED)
+                        { //patches the chunk as stored, so it's compressed as combine would have left it
+                            if (plain != null) chunks[i] = compressChunk(plain, types[i]);
+                            chunks[i] = applyAll(chunks[i], List.of(patch.diff()));
+                            plain = null;
+                        }
+                        else
+                        {
+                            if (plain == null) plain = decompressChunk(chunks[i], types[i]);
+                            plain = patchChunk(plain, patch.diff(), patch.kind() == ChunkPatch.Kind.STRUCTURAL);
+                        }
+                        types[i] = patch.compressionType();
+                    }
+                    else
+                    {
+                        chunks[i] = instruction.payload();
+                        types[i] = instruction.compressionType();
+                        plain = null;
+                    }
+                }
+                else
+                {
+                    chunks[i] = null;
+                    plain = null;
+                }
+                present = instruction.location().sectorCount != 0;
+                timestamp = instruction.timestamp();
+            }
+            if (plain != null) chunks[i] = compressChunk(plain, types[i]);
+        });
+
+        //as in combine, a chunk no difference touched is kept wherever the base region has a location for it
+        boolean[] written = new boolean[1024];
+        int end = 0;
+        for (int i = 0; i < 1024; i++)
+        {
+            ChunkLocation locationData = locations[i];
+            written[i] = instructions.get(i) == null ? locationData.offset != 0 || locationData.sectorCount != 0 : locationData.sectorCount > 0;
+            if (written[i])
+            {
+                end = Math.max(end, locationData.offset + locationData.sectorCount);
+            }
+        }
+        ByteBuffer swap = ByteBuffer.allocate(Math.max(end*4096, 8192));
+        for (int i = 0; i < 1024; i++)
+        {
+            ChunkLocation locationData = locations[i];
+            for (int j = 0; j < 3; j++)
+            {
+                swap.put(i*4+j, (byte) (locationData.offset >> 8*(3-j-1)));
+            }
+            swap.put(i*4+3, locationData.sectorCount);
+            swap.putInt(i*4+4096, timestamps[i]);
+            if (written[i] && chunks[i] != null)
+            {
+                swap = fit(swap, locationData.offset * 4096 + 5 + chunks[i].length);
+                swap.putInt(locationData.offset * 4096, chunks[i].length+1);
+                swap.put(locationData.offset * 4096 + 4, types[i]);
+                swap.put(locationData.offset * 4096 + 5, chunks[i]);
+            }
+        }
+        swap.position(end*4096);
+        return bufferToTrimmedArray(swap);
+    }
+
     @Override
-    public int getInitBufferSize(int initDataLength)
+    public long getCombineMemory(List<CompressedFile> files) throws IOException
+    { //patched chunks are held decompressed beside the base region, and the region is written out separately
+        return 2 * super.getCombineMemory(files);
+    }
+
+    /**
+     * Works out where the last sector of the combined region ends, from the locations in the instructions and the
+     * locations of every chunk they don't touch
+     */
+    @Override
+    public int getCombinedLength(ByteBuffer oldData, byte[] newData)
+    {
+        boolean[] modified = new boolean[1024];
+        ByteBuffer newBuffer = ByteBuffer.wrap(newData);
+        int end = 0;
+        while (newBuffer.hasRemaining())
+        {
+            int i = newBuffer.getInt();
+            modified[i] = true;
+            int offset = newBuffer.getInt();
+            byte sectorCount = newBuffer.get();
+            int timestamp = newBuffer.getInt();
+            if (timestamp != oldData.getInt(i*4+4096) && sectorCount > 0)
+            { //skip the chunk's data
+                int chunk_length_bytes = newBuffer.getInt();
+                newBuffer.position(newBuffer.position() + 1 + chunk_length_bytes);
+            }
+            if (sectorCount > 0)
+            {
+                end = Math.max(end, offset + sectorCount);
+            }
+        }
+        for (int i = 0; i < 1024; i++)
+        {
+            if (modified[i]) continue;
+            int location = oldData.getInt(i*4);
+            if (location != 0)
+            {
+                end = Math.max(end, (location >>> 8) + (byte) location);
+            }
+        }
+        return Math.max(end*4096, 8192);
+    }
+
+    /**
+     * Makes sure a buffer can hold length bytes, keeping its position. Only needed for a combined region when a
+     * recompressed chunk comes out longer than the sectors it was given.
+     */
+    private static ByteBuffer fit(ByteBuffer swap, int length)
+    {
+        if (length <= swap.capacity()) return swap;
+        ByteBuffer larger = ByteBuffer.wrap(Arrays.copyOf(swap.array(), Math.max(length, swap.capacity() + swap.capacity() / 8)));
+        larger.position(swap.position());
+        return larger;
+    }
+
+    /**
+     * Runs work for each chunk slot. When called from a worker of a ForkJoinPool, such as a parallel backup's, the
+     * slots are forked across that pool, so one busy region isn't left to a single thread. Otherwise they run in turn.
+     */
+    private static void forEachSlot(List<Integer> slots, IntConsumer work)
     {
-        return 16*1024*1024; //Largest region file I've seen is <14MiB, on 2b2t
+        if (slots.size() < 2 || !ForkJoinTask.inForkJoinPool())
+        {
+            for (int slot : slots)
+            {
+                work.accept(slot);
+            }
+        }
+        else
+        {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(slots.size());
+            for (int slot : slots)
+            {
+                tasks.add(ForkJoinTask.adapt(() -> work.accept(slot)));
+            }
+            ForkJoinTask.invokeAll(tasks);
+        }
     }
 
     private ChunkLocation[] getLocations(ByteBuffer buffer)
@@ -178,6 +442,27 @@ public class MCAHandler extends ITypeHandler
         return new Pair<>(new Pair<>(length, decompressionType), data);
     }
 
+    /**
+     * Reads one chunk's entry from a region's differences
+     * @param timestamps Timestamps of the region the differences apply to
+     */
+    private static Instruction readInstruction(ByteBuffer diff, int[] timestamps)
+    {
+        int i = diff.getInt();
+        ChunkLocation locationData = new ChunkLocation(diff.getInt(), diff.get());
+        int timestamp = diff.getInt();
+        byte decompressionType = 0;
+        byte[] payload = null;
+        if (timestamp != timestamps[i] && locationData.sectorCount() > 0)
+        {
+            int chunk_length_bytes = diff.getInt();
+            decompressionType = diff.get();
+            payload = new byte[chunk_length_bytes];
+            diff.get(payload, 0, chunk_length_bytes);
+        }
+        return new Instruction(i, locationData, timestamp, decompressionType, payload);
+    }
+
     @Override
     public Pair<byte[], CompressionScheme> getDifference(byte[] oldData, byte[] newData)
     {
@@ -186,6 +471,29 @@ public class MCAHandler extends ITypeHandler
         ByteBuffer diffs = ByteBuffer.allocate(Math.max(newData.length, oldData.length)*5);
         Pair<ChunkLocation[], int[]> oldHeader = getHeader(oldBuffer);
         Pair<ChunkLocation[], int[]> newHeader = getHeader(newBuffer);
+        //chunks are read out first, so only the decompressing, diffing and compressing is spread across the pool
+        List<Pair<Pair<Integer, Byte>, byte[]>> oldChunks = new ArrayList<>(Collections.nCopies(1024, null));
+        List<Pair<Pair<Integer, Byte>, byte[]>> newChunks = new ArrayList<>(Collections.nCopies(1024, null));
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < 1024; i++)
+        {
+            if (newHeader.first()[i].sectorCount != 0 && oldHeader.second()[i] != newHeader.second()[i])
+            {
+                oldChunks.set(i, getChunk(i, oldHeader, oldBuffer));
+                newChunks.set(i, getChunk(i, newHeader, newBuffer));
+                if (oldChunks.get(i).second() != null) changed.add(i);
+            }
+        }
+        byte[][] chunkDiffs = new byte[1024][];
+        byte[] types = new byte[1024];
+        forEachSlot(changed, (i) -> {
+            Pair<Pair<Integer, Byte>, byte[]> oldChunk = oldChunks.get(i);
+            Pair<Pair<Integer, Byte>, byte[]> newChunk = newChunks.get(i);
+            Pair<Byte, byte[]> chunk_diff = getChunkDifference(oldChunk.second(), oldChunk.first().second(), newChunk.second(), newChunk.first().second());
+            types[i] = chunk_diff.first();
+            chunkDiffs[i] = chunk_diff.second();
+        });
+
         for (int i = 0; i < 1024; i++)
         {
             if (oldHeader.second()[i] != newHeader.second()[i] || !oldHeader.first()[i].equals(newHeader.first()[i]))
@@ -196,20 +504,10 @@ public class MCAHandler extends ITypeHandler
                 diffs.putInt(newHeader.second()[i]);
                 if (newHeader.first()[i].sectorCount != 0 && oldHeader.second()[i] != newHeader.second()[i])
                 {
-                    Pair<Pair<Integer, Byte>, byte[]> oldChunk = getChunk(i, oldHeader, oldBuffer);
-                    Pair<Pair<Integer, Byte>, byte[]> newChunk = getChunk(i, newHeader, newBuffer);
-                    byte[] chunk_diff;
-                    if (oldChunk.second() == null)
-                    {
-                        chunk_diff = newChunk.second();
-                    }
-                    else
-                    {
-                        chunk_diff = compressChunk(binaryHandler.getDifference(decompressChunk(oldChunk.second(), oldChunk.first().second()),
-                                                                        decompressChunk(newChunk.second(), newChunk.first().second())).first(), (byte)2);
-                    }
+                    Pair<Pair<Integer, Byte>, byte[]> newChunk = newChunks.get(i);
+                    byte[] chunk_diff = chunkDiffs[i] == null ? newChunk.second() : chunkDiffs[i];
                     diffs.putInt(chunk_diff.length);
-                    diffs.put(newChunk.first().second());
+                    diffs.put(chunkDiffs[i] == null ? newChunk.first().second() : types[i]);
                     diffs.put(chunk_diff);
                 }
             }
@@ -220,7 +518,7 @@ public class MCAHandler extends ITypeHandler
         //we compress above 1KiB
         if (toReturn.length >= binaryHandler.compression_threshold)
         {
-            return new Pair<>(toReturn, new ZipScheme());
+            return new Pair<>(toReturn, CompressionSelector.select(toReturn));
         }
         else
         {
@@ -228,6 +526,256 @@ public class MCAHandler extends ITypeHandler
         }
     }
 
+    /**
+     * Diffs one chunk against the old region's chunk. Chunks are compared decompressed when both can be, and the new
+     * chunk compresses back to exactly the bytes it's stored as. Otherwise, as for LZ4, custom and external chunks,
+     * or chunks compressed by another zlib, the stored bytes are compared, so restoring never recompresses them.
+     * @return The compression type to write to the differences, and the compressed difference
+     */
+    Pair<Byte, byte[]> getChunkDifference(byte[] oldChunk, byte oldType, byte[] newChunk, byte newType)
+    {
+        if (isDecompressible(oldType) && isDecompressible(newType))
+        {
+            byte[] old_chunk = decompressChunk(oldChunk, oldType);
+            byte[] new_chunk = decompressChunk(newChunk, newType);
+            if (Arrays.equals(compressChunk(new_chunk, newType), newChunk))
+            {
+                byte[] chunk_diff = structuralDiff ? NBTDiff.getDifference(old_chunk, new_chunk) : null;
+                if (chunk_diff != null)
+                {
+                    return new Pair<>((byte) (newType | structuralFlag), compressChunk(chunk_diff, (byte)2));
+                }
+                return new Pair<>(newType, compressChunk(binaryHandler.getDifference(old_chunk, new_chunk).first(), (byte)2));
+            }
+        }
+        byte[] chunk_diff = compressChunk(binaryHandler.getDifference(oldChunk, newChunk).first(), (byte)2);
+        byte[] payload = new byte[chunk_diff.length + 1];
+        payload[0] = newType;
+        System.arraycopy(chunk_diff, 0, payload, 1, chunk_diff.length);
+        return new Pair<>(storedDiff, payload);
+    }
+
+    /**
+     * Reads a chunk's difference from the old region's chunk
+     * @param compressionType The chunk's compression type as written to the differences
+     * @param payload The compressed difference following it
+     */
+    static ChunkPatch readPatch(byte compressionType, byte[] payload)
+    {
+        if (compressionType == storedDiff)
+        {
+            return new ChunkPatch(ChunkPatch.Kind.STORED, payload[0], decompressChunk(Arrays.copyOfRange(payload, 1, payload.length), (byte)2));
+        }
+        if ((compressionType & structuralFlag) != 0)
+        {
+            return new ChunkPatch(ChunkPatch.Kind.STRUCTURAL, (byte) (compressionType & ~structuralFlag), decompressChunk(payload, (byte)2));
+        }
+        return new ChunkPatch(ChunkPatch.Kind.BINARY, compressionType, decompressChunk(payload, (byte)2));
+    }
+
+    /**
+     * Applies a difference to a chunk as stored
+     * @param chunk The old chunk, which may be modified
+     * @param compressionType The old chunk's compression type
+     * @return The new chunk as stored, with the patch's compression type
+     */
+    byte[] applyPatch(byte[] chunk, byte compressionType, ChunkPatch patch)
+    {
+        if (patch.kind() == ChunkPatch.Kind.STORED)
+        {
+            return applyAll(chunk, List.of(patch.diff()));
+        }
+        byte[] plain = patchChunk(decompressChunk(chunk, compressionType), patch.diff(), patch.kind() == ChunkPatch.Kind.STRUCTURAL);
+        return compressChunk(plain, patch.compressionType());
+    }
+
+    /**
+     * What a chunk holds partway through composing a chain, relative to the first region
+     * @param kind Where the chunk's data comes from
+     * @param data The stored chunk for RAW, or the decompressed chunk for PLAIN
+     * @param diffs Differences from the first region's decompressed chunk, for DIFF
+     * @param compressionType Compression type of the chunk, for every kind but BASE and NONE
+     */
+    private record ChunkState(Kind kind, byte[] data, List<byte[]> diffs, byte compressionType)
+    {
+        enum Kind
+        {
+            BASE, //unchanged from the first region
+            NONE, //removed
+            RAW, //replaced by a new chunk, stored as given
+            DIFF, //patched, with every patch kept
+            PLAIN //replaced by a new chunk, then patched
+        }
+    }
+
+    /**
+     * Follows each chunk through the chain, keeping patches to chunks of the first region as a list of differences
+     * which are composed by the BinaryHandler. A chunk is only rebuilt if it was added during the chain and then
+     * patched. Chunks which can't be expressed relative to the first region, such as one removed and added again,
+     * make the chain uncomposable, so it's combined step by step instead.
+     */
+    @Override
+    public byte[] compose(ByteBuffer oldData, List<byte[]> diffs)
+    {
+        int basePosition = oldData.position();
+        Pair<ChunkLocation[], int[]> baseHeader = getHeader(oldData);
+        oldData.position(basePosition);
+        ChunkLocation[] locations = baseHeader.first().clone();
+        int[] timestamps = baseHeader.second().clone();
+        ChunkState[] states = new ChunkState[1024];
+        for (byte[] diff : diffs)
+        {
+            ByteBuffer diffBuffer = ByteBuffer.wrap(diff);
+            while (diffBuffer.hasRemaining())
+            {
+                int i = diffBuffer.getInt();
+                ChunkLocation locationData = new ChunkLocation(diffBuffer.getInt(), diffBuffer.get());
+                int timestamp = diffBuffer.getInt();
+                ChunkState state = states[i] == null ? new ChunkState(ChunkState.Kind.BASE, null, null, (byte)0) : states[i];
+                if (timestamp == timestamps[i])
+                { //moved, but the chunk is the same
+                }
+                else if (locationData.sectorCount() > 0)
+                {
+                    int chunk_length_bytes = diffBuffer.getInt();
+                    byte decompressionType = diffBuffer.get();
+                    byte[] payload = new byte[chunk_length_bytes];
+                    diffBuffer.get(payload, 0, chunk_length_bytes);
+                    if (locations[i].sectorCount == 0)
+                    {
+                        state = new ChunkState(ChunkState.Kind.RAW, payload, null, decompressionType);
+                    }
+                    else
+                    { //only binary differences of decompressed chunks compose
+                        if (decompressionType == storedDiff || (decompressionType & structuralFlag) != 0) return null;
+                        state = patch(state, decompressChunk(payload, (byte)2), decompressionType);
+                        if (state == null) return null;
+                    }
+                }
+                else
+                {
+                    state = new ChunkState(ChunkState.Kind.NONE, null, null, (byte)0);
+                }
+                locations[i] = locationData;
+                timestamps[i] = timestamp;
+                states[i] = state;
+            }
+        }
+
+        ByteBuffer composed = ByteBuffer.allocate(Math.max(8192, diffs.stream().mapToInt((diff) -> diff.length).sum() * 2));
+        for (int i = 0; i < 1024; i++)
+        {
+            ChunkState state = states[i];
+            if (state == null) continue;
+            ChunkLocation locationData = locations[i];
+            composed = fit(composed, composed.position() + 13);
+            composed.putInt(i);
+            composed.putInt(locationData.offset());
+            composed.put(locationData.sectorCount());
+            composed.putInt(timestamps[i]);
+            if (timestamps[i] == baseHeader.second()[i])
+            { //combine will keep the first region's chunk, so the chunk has to be that one
+                if (locationData.sectorCount() > 0 && state.kind() != ChunkState.Kind.BASE) return null;
+                continue;
+            }
+            if (locationData.sectorCount() <= 0) continue;
+            //a new timestamp always comes with a new chunk, so a chunk can't still be BASE here
+            if (state.kind() == ChunkState.Kind.BASE || state.kind() == ChunkState.Kind.NONE) return null;
+
+            byte[] payload;
+            if (baseHeader.first()[i].sectorCount == 0)
+            { //combine takes the chunk as given
+                payload = switch (state.kind())
+                        {
+                            case RAW -> state.data();
+                            case PLAIN -> compressChunk(state.data(), state.compressionType());
+                            default -> null;
+                        };
+            }
+            else
+            { //combine patches the first region's chunk
+                if (state.kind() == ChunkState.Kind.RAW) return null; //stored as given, so can't be recompressed
+                Pair<Pair<Integer, Byte>, byte[]> baseChunk = getChunk(i, baseHeader, oldData);
+                oldData.position(basePosition);
+                byte[] basePlain = decompressChunk(baseChunk.second(), baseChunk.first().second());
+                byte[] chunkDiff = null;
+                if (state.kind() == ChunkState.Kind.DIFF)
+                {
+                    ByteBuffer wrapped = ByteBuffer.wrap(basePlain);
+                    wrapped.position(basePlain.length);
+                    chunkDiff = state.diffs().size() == 1 ? state.diffs().get(0) : binaryHandler.compose(wrapped, state.diffs());
+                }
+                if (chunkDiff == null)
+                {
+                    byte[] finalPlain = state.kind() == ChunkState.Kind.DIFF ? applyAll(basePlain.clone(), state.diffs()) : state.data();
+                    chunkDiff = binaryHandler.getDifference(basePlain, finalPlain).first();
+                }
+                payload = compressChunk(chunkDiff, (byte)2);
+            }
+            if (payload == null) return null;
+            composed = fit(composed, composed.position() + 5 + payload.length);
+            composed.putInt(payload.length);
+            composed.put(state.compressionType());
+            composed.put(payload);
+        }
+        return bufferToTrimmedArray(composed);
+    }
+
+    /**
+     * Applies a difference to a chunk's state
+     * @param diff Decompressed BinaryHandler difference
+     * @param compressionType Compression type the patched chunk is stored with
+     * @return The new state, or null if the chunk can't be patched
+     */
+    private ChunkState patch(ChunkState state, byte[] diff, byte compressionType)
+    {
+        return switch (state.kind())
+                {
+                    case BASE -> new ChunkState(ChunkState.Kind.DIFF, null, new ArrayList<>(List.of(diff)), compressionType);
+                    case DIFF -> {
+                        state.diffs().add(diff);
+                        yield new ChunkState(ChunkState.Kind.DIFF, null, state.diffs(), compressionType);
+                    }
+                    case RAW -> new ChunkState(ChunkState.Kind.PLAIN, applyAll(decompressChunk(state.data(), state.compressionType()).clone(), List.of(diff)), null, compressionType);
+                    case PLAIN -> new ChunkState(ChunkState.Kind.PLAIN, applyAll(state.data(), List.of(diff)), null, compressionType);
+                    case NONE -> null;
+                };
+    }
+
+    /**
+     * Applies one difference to a decompressed chunk
+     * @param chunk The chunk, which may be modified
+     * @param diff Decompressed difference
+     * @param structural Whether diff is an NBTDiff rather than a BinaryHandler difference
+     */
+    private byte[] patchChunk(byte[] chunk, byte[] diff, boolean structural)
+    {
+        if (!structural) return applyAll(chunk, List.of(diff));
+        try
+        {
+            return NBTDiff.apply(chunk, diff);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("NBT difference doesn't fit the chunk", e);
+        }
+    }
+
+    /**
+     * Applies BinaryHandler differences to a decompressed chunk in turn
+     * @param chunk The chunk, which may be modified
+     */
+    private byte[] applyAll(byte[] chunk, List<byte[]> diffs)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        buffer.position(chunk.length);
+        for (byte[] diff : diffs)
+        {
+            buffer = binaryHandler.combine(ensureCapacity(buffer, binaryHandler.getCombinedLength(buffer, diff)), diff);
+        }
+        return bufferToTrimmedArray(buffer);
+    }
+
     @Override
     public boolean verify(ByteBuffer combined, ByteBuffer newData)
     {
@@ -263,7 +811,7 @@ public class MCAHandler extends ITypeHandler
     @Override
     public CompressionScheme getInitCompression(byte[] data)
     {
-        return new ZipScheme();
+        return CompressionSelector.select(data);
     }
 
     @Override
@@ -272,53 +820,64 @@ public class MCAHandler extends ITypeHandler
         return binaryHandler.getCompressionSchemes();
     }
 
-    private byte[] decompressChunk(byte[] chunk, byte decompressionType)
+    /**
+     * Whether a chunk of this compression type can be decompressed and compressed again. LZ4 chunks, custom
+     * compression and chunks kept in external .mcc files (whose type has 0x80 set) can't, and are diffed as stored.
+     */
+    static boolean isDecompressible(byte compressionType)
+    {
+        return compressionType == 1 || compressionType == 2 || compressionType == 3;
+    }
+
+    static byte[] decompressChunk(byte[] chunk, byte decompressionType)
     {
         //1 == gzip, 2 == zlib, 3 == uncompressed
         if (chunk == null)
             return new byte[0];
-        if (decompressionType == 1)
-        {
-            throw new IllegalArgumentException("Gzipped chunk");
-        }
-        else if (decompressionType == 2)
+        try
         {
-            ByteArrayInputStream bais = new ByteArrayInputStream(chunk);
-            try(InflaterInputStream zis = new InflaterInputStream(bais))
+            if (decompressionType == 1)
             {
-                return zis.readAllBytes();
+                try (GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(chunk)))
+                {
+                    return stream.readAllBytes();
+                }
             }
-            catch (IOException e)
+            else if (decompressionType == 2)
             {
-                throw new AssertionError("IOException shouldn't occur");
+                return Zlib.decompress(chunk);
             }
         }
-        else if (decompressionType == 3)
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Corrupt chunk", e);
+        }
+        if (decompressionType == 3)
         {
             return chunk;
         }
         throw new IllegalArgumentException("Unknown decompression type");
     }
 
-    private byte[] compressChunk(byte[] chunk, byte compressionType)
+    static byte[] compressChunk(byte[] chunk, byte compressionType)
     {
         //1 == gzip, 2 == zlib, 3 == uncompressed
         if (compressionType == 1)
         {
-            throw new IllegalArgumentException("Gzipped chunk");
-        }
-        else if (compressionType == 2)
-        {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try(DeflaterOutputStream dos = new DeflaterOutputStream(baos))
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.length / 4 + 64);
+            try (GZIPOutputStream stream = new GZIPOutputStream(bytes))
             {
-                dos.write(chunk);
+                stream.write(chunk);
             }
             catch (IOException e)
             {
                 throw new AssertionError("IOException shouldn't occur");
             }
-            return baos.toByteArray();
+            return bytes.toByteArray();
+        }
+        else if (compressionType == 2)
+        {
+            return Zlib.compress(chunk);
         }
         else if (compressionType == 3)
         {
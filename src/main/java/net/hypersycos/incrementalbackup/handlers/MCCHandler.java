@@ -0,0 +1,106 @@
+package net.hypersycos.incrementalbackup.handlers;
+
+import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.CompressionSelector;
+import net.hypersycos.incrementalbackup.compression.NoCompress;
+import net.hypersycos.incrementalbackup.compression.ZipScheme;
+import net.hypersycos.incrementalbackup.util.Pair;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Handles the c.x.z.mcc files Minecraft keeps chunks in when they're too big for their region, which only holds a
+ * stub for them. The file is a single chunk, compressed the same way as in a region, so it's diffed the way
+ * MCAHandler diffs a chunk: decompressed where it can be recompressed exactly, and as stored otherwise.
+ * Register it for "mcc" beside MCAHandler for "mca".
+ */
+public class MCCHandler extends ITypeHandler
+{
+    final MCAHandler chunkHandler;
+
+    public MCCHandler()
+    {
+        this(false);
+    }
+
+    /**
+     * @param structuralDiff Whether to diff the chunk by its NBT tags, as MCAHandler(true) does
+     */
+    public MCCHandler(boolean structuralDiff)
+    {
+        this.chunkHandler = new MCAHandler(structuralDiff);
+    }
+
+    //The difference is the compression type MCAHandler would write to a region's differences, then its payload.
+
+    @Override
+    public ByteBuffer combine(ByteBuffer oldData, byte[] newData)
+    {
+        byte[] old_chunk = Arrays.copyOf(oldData.array(), oldData.position());
+        MCAHandler.ChunkPatch patch = MCAHandler.readPatch(newData[0], Arrays.copyOfRange(newData, 1, newData.length));
+        byte[] new_chunk = chunkHandler.applyPatch(old_chunk, getCompressionType(old_chunk), patch);
+        ByteBuffer combined = ByteBuffer.wrap(new_chunk);
+        combined.position(new_chunk.length);
+        return combined;
+    }
+
+    /**
+     * combine always returns a new buffer, so the old one never needs to grow
+     */
+    @Override
+    public int getCombinedLength(ByteBuffer oldData, byte[] newData)
+    {
+        return oldData.position();
+    }
+
+    @Override
+    public Pair<byte[], CompressionScheme> getDifference(byte[] oldData, byte[] newData)
+    {
+        Pair<Byte, byte[]> chunk_diff = chunkHandler.getChunkDifference(oldData, getCompressionType(oldData), newData, getCompressionType(newData));
+        byte[] diff = new byte[chunk_diff.second().length + 1];
+        diff[0] = chunk_diff.first();
+        System.arraycopy(chunk_diff.second(), 0, diff, 1, chunk_diff.second().length);
+        //the payload is already compressed
+        return new Pair<>(diff, new NoCompress());
+    }
+
+    /**
+     * Works out the chunk's compression type from its first bytes, since unlike a region the file doesn't store it
+     * @return 1 for gzip, 2 for zlib, 3 for uncompressed NBT, 4 for LZ4, or 0 if unknown
+     */
+    static byte getCompressionType(byte[] data)
+    {
+        if (data.length >= 2 && data[0] == (byte) 0x1f && data[1] == (byte) 0x8b)
+        {
+            return 1;
+        }
+        if (data.length >= 2 && (data[0] & 0x0f) == 8 && ((Byte.toUnsignedInt(data[0]) << 8) | Byte.toUnsignedInt(data[1])) % 31 == 0)
+        {
+            return 2;
+        }
+        if (data.length >= 1 && data[0] == 10) //a compound tag
+        {
+            return 3;
+        }
+        if (data.length >= 8 && new String(data, 0, 8, StandardCharsets.US_ASCII).equals("LZ4Block"))
+        {
+            return 4;
+        }
+        return 0;
+    }
+
+    @Override
+    public CompressionScheme getInitCompression(byte[] data)
+    {
+        return getCompressionType(data) == 3 ? CompressionSelector.select(data) : new NoCompress();
+    }
+
+    @Override
+    public Set<CompressionScheme> getCompressionSchemes()
+    {
+        return Set.of(new ZipScheme(), new NoCompress());
+    }
+}
@@ -0,0 +1,378 @@
+package net.hypersycos.incrementalbackup.handlers;
+
+import net.querz.nbt.io.NBTDeserializer;
+import net.querz.nbt.io.NBTSerializer;
+import net.querz.nbt.io.NamedTag;
+import net.querz.nbt.tag.*;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Differences between two uncompressed NBT documents, as operations on tags found by their path of compound keys
+ * and list indices, rather than on byte offsets. A new entity or tile entity is a single list insertion, however
+ * much of the document it shifts along.
+ */
+final class NBTDiff
+{
+    private static final byte set = 0; //path, tag: replaces or adds the tag at path
+    private static final byte remove = 1; //path: removes a compound entry
+    private static final byte splice = 2; //path, index, removed, added, tags: replaces a range of a list
+    private static final byte patch = 3; //path, runs of (start, length, values): overwrites parts of an array
+    private static final byte keyStep = 0;
+    private static final byte indexStep = 1;
+    private static final byte compoundId = 10;
+
+    private NBTDiff(){}
+
+    /**
+     * Finds the operations which turn oldData into newData
+     * @return The operations, or null if oldData and newData aren't both NBT, the operations are no smaller than
+     * newData, or applying them doesn't give back exactly newData
+     */
+    static byte[] getDifference(byte[] oldData, byte[] newData)
+    {
+        //a chunk is always a compound, so anything else isn't worth trying to parse
+        if (oldData.length == 0 || newData.length == 0 || oldData[0] != compoundId || newData[0] != compoundId) return null;
+        try
+        {
+            NamedTag oldTag = read(oldData);
+            NamedTag newTag = read(newData);
+            if (!Objects.equals(oldTag.getName(), newTag.getName())) return null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (!diff(oldTag.getTag(), newTag.getTag(), new ArrayList<>(), out)) return null;
+            if (bytes.size() >= newData.length) return null;
+            byte[] difference = bytes.toByteArray();
+            //tags may not serialize exactly as they were read, so the operations are only kept if they round trip
+            return Arrays.equals(apply(oldData, difference), newData) ? difference : null;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Applies operations from getDifference to an NBT document
+     * @throws IOException Thrown if data isn't NBT, or the operations don't fit it
+     */
+    static byte[] apply(byte[] data, byte[] difference) throws IOException
+    {
+        NamedTag tag = read(data);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(difference));
+        try
+        {
+            while (in.available() > 0)
+            {
+                byte operation = in.readByte();
+                List<Object> path = readPath(in);
+                Tag<?> target = path.size() == 0 ? null : find(tag.getTag(), path.subList(0, path.size() - 1));
+                Object last = path.size() == 0 ? null : path.get(path.size() - 1);
+                switch (operation)
+                {
+                    case set -> {
+                        Tag<?> value = readTag(in);
+                        if (target instanceof CompoundTag compound) compound.put((String) last, value);
+                        else list(target).set((Integer) last, value);
+                    }
+                    case remove -> ((CompoundTag) target).remove((String) last);
+                    case splice -> {
+                        ListTag<Tag<?>> list = list(find(tag.getTag(), path));
+                        int index = in.readInt();
+                        int removed = in.readInt();
+                        int added = in.readInt();
+                        for (int i = 0; i < removed; i++)
+                        {
+                            list.remove(index);
+                        }
+                        for (int i = 0; i < added; i++)
+                        {
+                            list.add(index + i, readTag(in));
+                        }
+                    }
+                    case patch -> readPatch(in, find(tag.getTag(), path));
+                    default -> throw new IOException("Unknown NBT operation " + operation);
+                }
+            }
+        }
+        catch (ClassCastException | IndexOutOfBoundsException | IllegalArgumentException e)
+        {
+            throw new IOException("NBT difference doesn't fit the chunk", e);
+        }
+        return new NBTSerializer(false).toBytes(tag);
+    }
+
+    private static NamedTag read(byte[] data) throws IOException
+    {
+        return new NBTDeserializer(false).fromBytes(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ListTag<Tag<?>> list(Tag<?> tag)
+    {
+        return (ListTag<Tag<?>>) tag;
+    }
+
+    private static Tag<?> find(Tag<?> root, List<Object> path)
+    {
+        Tag<?> tag = root;
+        for (Object step : path)
+        {
+            tag = step instanceof String key ? ((CompoundTag) tag).get(key) : list(tag).get((Integer) step);
+        }
+        return tag;
+    }
+
+    /**
+     * Writes the operations which turn oldTag into newTag
+     * @return False if they can't be expressed, which only happens when the roots are of different types
+     */
+    private static boolean diff(Tag<?> oldTag, Tag<?> newTag, List<Object> path, DataOutputStream out) throws IOException
+    {
+        if (oldTag.equals(newTag)) return true;
+        if (oldTag instanceof CompoundTag oldCompound && newTag instanceof CompoundTag newCompound && keepsOrder(oldCompound, newCompound))
+        {
+            for (String key : oldCompound.keySet())
+            {
+                if (newCompound.get(key) == null) writeOperation(out, remove, path, key);
+            }
+            for (String key : newCompound.keySet())
+            {
+                path.add(key);
+                Tag<?> oldValue = oldCompound.get(key);
+                if (oldValue == null)
+                {
+                    writeOperation(out, set, path, null);
+                    writeTag(out, newCompound.get(key));
+                }
+                else
+                {
+                    diff(oldValue, newCompound.get(key), path, out);
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        else if (oldTag instanceof ListTag<?> oldList && newTag instanceof ListTag<?> newList && sameType(oldList, newList))
+        {
+            diffList(oldList, newList, path, out);
+        }
+        else if (isPatchable(oldTag, newTag))
+        {
+            writePatch(oldTag, newTag, path, out);
+        }
+        else if (path.size() == 0)
+        {
+            return false;
+        }
+        else
+        {
+            writeOperation(out, set, path, null);
+            writeTag(out, newTag);
+        }
+        return true;
+    }
+
+    /**
+     * Checks that newCompound's entries are in the order they would be after removing and adding entries to
+     * oldCompound, since added entries go on the end
+     */
+    private static boolean keepsOrder(CompoundTag oldCompound, CompoundTag newCompound)
+    {
+        List<String> expected = new ArrayList<>();
+        for (String key : oldCompound.keySet())
+        {
+            if (newCompound.get(key) != null) expected.add(key);
+        }
+        for (String key : newCompound.keySet())
+        {
+            if (oldCompound.get(key) == null) expected.add(key);
+        }
+        return expected.equals(new ArrayList<>(newCompound.keySet()));
+    }
+
+    private static boolean sameType(ListTag<?> oldList, ListTag<?> newList)
+    {
+        return oldList.size() == 0 || newList.size() == 0 || oldList.get(0).getClass() == newList.get(0).getClass();
+    }
+
+    /**
+     * Diffs the middle of two lists, between the entries they start and end with in common. Entries are compared
+     * pairwise, then any left over are removed or added in one splice.
+     */
+    private static void diffList(ListTag<?> oldList, ListTag<?> newList, List<Object> path, DataOutputStream out) throws IOException
+    {
+        int prefix = 0;
+        int shorter = Math.min(oldList.size(), newList.size());
+        while (prefix < shorter && oldList.get(prefix).equals(newList.get(prefix)))
+        {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && oldList.get(oldList.size() - 1 - suffix).equals(newList.get(newList.size() - 1 - suffix)))
+        {
+            suffix++;
+        }
+        int oldMiddle = oldList.size() - prefix - suffix;
+        int newMiddle = newList.size() - prefix - suffix;
+        int paired = Math.min(oldMiddle, newMiddle);
+        for (int i = prefix; i < prefix + paired; i++)
+        {
+            path.add(i);
+            diff(oldList.get(i), newList.get(i), path, out);
+            path.remove(path.size() - 1);
+        }
+        if (oldMiddle != newMiddle)
+        {
+            writeOperation(out, splice, path, null);
+            out.writeInt(prefix + paired);
+            out.writeInt(oldMiddle - paired);
+            out.writeInt(newMiddle - paired);
+            for (int i = prefix + paired; i < prefix + newMiddle; i++)
+            {
+                writeTag(out, newList.get(i));
+            }
+        }
+    }
+
+    private static boolean isPatchable(Tag<?> oldTag, Tag<?> newTag)
+    {
+        return oldTag.getClass() == newTag.getClass() && (oldTag instanceof ByteArrayTag || oldTag instanceof IntArrayTag || oldTag instanceof LongArrayTag)
+                && Array.getLength(arrayOf(oldTag)) == Array.getLength(arrayOf(newTag));
+    }
+
+    /**
+     * Returns the array held by a ByteArrayTag, IntArrayTag or LongArrayTag, which may be written to
+     */
+    private static Object arrayOf(Tag<?> tag)
+    {
+        if (tag instanceof ByteArrayTag array) return array.getValue();
+        if (tag instanceof IntArrayTag array) return array.getValue();
+        return ((LongArrayTag) tag).getValue();
+    }
+
+    /**
+     * Writes the runs of elements which differ between two arrays of the same type and length
+     */
+    private static void writePatch(Tag<?> oldTag, Tag<?> newTag, List<Object> path, DataOutputStream out) throws IOException
+    {
+        Object oldArray = arrayOf(oldTag);
+        Object newArray = arrayOf(newTag);
+        int length = Array.getLength(newArray);
+        List<int[]> runs = new ArrayList<>();
+        for (int i = 0; i < length;)
+        {
+            int mismatch = mismatch(oldArray, newArray, i, length);
+            if (mismatch < 0) break;
+            //a run carries on over a single equal element, since starting a new run costs 8 bytes
+            int end = mismatch + 1;
+            int next;
+            while ((next = mismatch(oldArray, newArray, end, Math.min(length, end + 2))) >= 0)
+            {
+                end = next + 1;
+            }
+            runs.add(new int[]{mismatch, end - mismatch});
+            i = end;
+        }
+        writeOperation(out, patch, path, null);
+        out.writeInt(runs.size());
+        for (int[] run : runs)
+        {
+            out.writeInt(run[0]);
+            out.writeInt(run[1]);
+            for (int i = run[0]; i < run[0] + run[1]; i++)
+            {
+                if (newArray instanceof byte[] values) out.writeByte(values[i]);
+                else if (newArray instanceof int[] values) out.writeInt(values[i]);
+                else out.writeLong(((long[]) newArray)[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first element from start to end which differs between two arrays, or -1 if none do
+     */
+    private static int mismatch(Object oldArray, Object newArray, int start, int end)
+    {
+        int found;
+        if (newArray instanceof byte[] values) found = Arrays.mismatch((byte[]) oldArray, start, end, values, start, end);
+        else if (newArray instanceof int[] values) found = Arrays.mismatch((int[]) oldArray, start, end, values, start, end);
+        else found = Arrays.mismatch((long[]) oldArray, start, end, (long[]) newArray, start, end);
+        return found < 0 ? -1 : start + found;
+    }
+
+    private static void readPatch(DataInputStream in, Tag<?> tag) throws IOException
+    {
+        Object array = arrayOf(tag);
+        int runs = in.readInt();
+        for (int run = 0; run < runs; run++)
+        {
+            int start = in.readInt();
+            int length = in.readInt();
+            for (int i = start; i < start + length; i++)
+            {
+                if (array instanceof byte[] values) values[i] = in.readByte();
+                else if (array instanceof int[] values) values[i] = in.readInt();
+                else ((long[]) array)[i] = in.readLong();
+            }
+        }
+    }
+
+    /**
+     * Writes an operation and its path. The path of a set is the tag being set, which is given as lastStep if it
+     * isn't already on the path.
+     */
+    private static void writeOperation(DataOutputStream out, byte operation, List<Object> path, String lastStep) throws IOException
+    {
+        out.writeByte(operation);
+        out.writeInt(path.size() + (lastStep == null ? 0 : 1));
+        for (Object step : path)
+        {
+            writeStep(out, step);
+        }
+        if (lastStep != null) writeStep(out, lastStep);
+    }
+
+    private static void writeStep(DataOutputStream out, Object step) throws IOException
+    {
+        if (step instanceof String key)
+        {
+            out.writeByte(keyStep);
+            out.writeUTF(key);
+        }
+        else
+        {
+            out.writeByte(indexStep);
+            out.writeInt((Integer) step);
+        }
+    }
+
+    private static List<Object> readPath(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        List<Object> path = new ArrayList<>(length);
+        for (int i = 0; i < length; i++)
+        {
+            path.add(in.readByte() == keyStep ? in.readUTF() : (Object) in.readInt());
+        }
+        return path;
+    }
+
+    private static void writeTag(DataOutputStream out, Tag<?> tag) throws IOException
+    {
+        byte[] serialized = new NBTSerializer(false).toBytes(new NamedTag("", tag));
+        out.writeInt(serialized.length);
+        out.write(serialized);
+    }
+
+    private static Tag<?> readTag(DataInputStream in) throws IOException
+    {
+        byte[] serialized = new byte[in.readInt()];
+        in.readFully(serialized);
+        return read(serialized).getTag();
+    }
+}
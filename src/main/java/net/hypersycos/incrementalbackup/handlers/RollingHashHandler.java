@@ -0,0 +1,229 @@
+package net.hypersycos.incrementalbackup.handlers;
+
+import net.hypersycos.incrementalbackup.compression.CompressedFile;
+import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.CompressionSelector;
+import net.hypersycos.incrementalbackup.compression.NoCompress;
+import net.hypersycos.incrementalbackup.compression.ZipScheme;
+import net.hypersycos.incrementalbackup.util.HashAlgorithm;
+import net.hypersycos.incrementalbackup.util.Hasher;
+import net.hypersycos.incrementalbackup.util.Pair;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class RollingHashHandler extends ITypeHandler
+{
+    final int min_chunk_size;
+    final int max_chunk_size;
+    final long boundary_mask;
+    final int compression_threshold;
+
+    private static final byte copy = 0;
+    private static final byte insert = 1;
+    //random values for each byte, fixed so boundaries are the same every run
+    private static final long[] gear = new long[256];
+    static
+    {
+        SplittableRandom random = new SplittableRandom(0x6765617248617368L);
+        for (int i = 0; i < gear.length; i++)
+        {
+            gear[i] = random.nextLong();
+        }
+    }
+
+    //This handler splits both files into chunks wherever a rolling hash of the last few bytes hits a boundary
+    //pattern, so chunk boundaries follow the content rather than fixed offsets. An inserted or removed byte only
+    //changes the chunks around it, and every other chunk of the new file is found in the old one and stored as a copy
+    //instruction, wherever it has moved to. The difference is a list of copy (old offset, length) and insert (bytes)
+    //instructions, similar to rsync or xdelta.
+
+    public RollingHashHandler()
+    {
+        this(1024, 1024);
+    }
+
+    /**
+     * @param average_chunk_size Average size of a chunk in bytes. Rounded down to a power of two.
+     * @param compression_threshold Differences at least this long are compressed
+     */
+    public RollingHashHandler(int average_chunk_size, int compression_threshold)
+    {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(average_chunk_size, 16));
+        this.min_chunk_size = (1 << bits) / 4;
+        this.max_chunk_size = (1 << bits) * 8;
+        //the high bits of the hash depend on the most bytes, so boundaries are tested on those
+        this.boundary_mask = ((1L << bits) - 1) << (64 - bits);
+        this.compression_threshold = compression_threshold;
+    }
+
+    /**
+     * Finds the end of the chunk starting at start
+     * @return Index one past the last byte of the chunk
+     */
+    private int findBoundary(byte[] data, int start)
+    {
+        int end = Math.min(data.length, start + max_chunk_size);
+        if (end - start <= min_chunk_size) return end;
+        long hash = 0;
+        for (int i = start + min_chunk_size; i < end; i++)
+        {
+            hash = (hash << 1) + gear[data[i] & 0xFF];
+            if ((hash & boundary_mask) == 0) return i + 1;
+        }
+        return end;
+    }
+
+    private static long fingerprint(byte[] data, int start, int end)
+    {
+        Hasher hasher = HashAlgorithm.XXH64.get();
+        hasher.update(ByteBuffer.wrap(data, start, end - start));
+        return ByteBuffer.wrap(hasher.digest()).getLong();
+    }
+
+    @Override
+    public ByteBuffer combine(ByteBuffer oldData, byte[] newData)
+    {
+        ByteBuffer instructions = ByteBuffer.wrap(newData);
+        int length = instructions.getInt();
+        //copies can read from anywhere in the old data, so the result can't be built in place
+        ByteBuffer result = ByteBuffer.allocate(length);
+        while (instructions.hasRemaining())
+        {
+            byte type = instructions.get();
+            if (type == copy)
+            {
+                int offset = instructions.getInt();
+                int copy_length = instructions.getInt();
+                oldData.get(offset, result.array(), result.position(), copy_length);
+                result.position(result.position() + copy_length);
+            }
+            else
+            {
+                int insert_length = instructions.getInt();
+                instructions.get(result.array(), result.position(), insert_length);
+                result.position(result.position() + insert_length);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int getCombinedLength(ByteBuffer oldData, byte[] newData)
+    {
+        return ByteBuffer.wrap(newData).getInt();
+    }
+
+    @Override
+    public long getCombineMemory(List<CompressedFile> files) throws IOException
+    { //every step builds a new buffer beside the old one
+        return 2 * super.getCombineMemory(files);
+    }
+
+    @Override
+    public Pair<byte[], CompressionScheme> getDifference(byte[] oldData, byte[] newData)
+    {
+        Map<Long, Integer> oldChunks = new HashMap<>();
+        for (int start = 0; start < oldData.length;)
+        {
+            int end = findBoundary(oldData, start);
+            oldChunks.putIfAbsent(fingerprint(oldData, start, end) ^ (end - start), start);
+            start = end;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream diff = new DataOutputStream(bytes);
+        try
+        {
+            diff.writeInt(newData.length);
+            int copy_offset = -1; //pending copy, merged with the next chunk if that follows on in the old data
+            int copy_length = 0;
+            int insert_start = 0; //pending insert, from insert_start to the current chunk
+            int start = 0;
+            while (start < newData.length)
+            {
+                int end = findBoundary(newData, start);
+                int length = end - start;
+                Integer match = oldChunks.get(fingerprint(newData, start, end) ^ length);
+                if (match != null && match + length <= oldData.length
+                        && Arrays.equals(oldData, match, match + length, newData, start, end))
+                {
+                    if (insert_start < start)
+                    {
+                        writeInsert(diff, newData, insert_start, start);
+                    }
+                    if (copy_offset >= 0 && copy_offset + copy_length == match)
+                    {
+                        copy_length += length;
+                    }
+                    else
+                    {
+                        if (copy_offset >= 0) writeCopy(diff, copy_offset, copy_length);
+                        copy_offset = match;
+                        copy_length = length;
+                    }
+                    insert_start = end;
+                }
+                else if (copy_offset >= 0)
+                { //the pending copy ends here, and this chunk starts a new insert
+                    writeCopy(diff, copy_offset, copy_length);
+                    copy_offset = -1;
+                }
+                start = end;
+            }
+            if (copy_offset >= 0) writeCopy(diff, copy_offset, copy_length);
+            if (insert_start < newData.length) writeInsert(diff, newData, insert_start, newData.length);
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError("IOException shouldn't occur");
+        }
+
+        byte[] toReturn = bytes.toByteArray();
+        //we compress above 1KiB
+        if (toReturn.length >= compression_threshold)
+        {
+            return new Pair<>(toReturn, CompressionSelector.select(toReturn));
+        }
+        else
+        {
+            return new Pair<>(toReturn, new NoCompress());
+        }
+    }
+
+    private static void writeCopy(DataOutputStream diff, int offset, int length) throws IOException
+    {
+        diff.writeByte(copy);
+        diff.writeInt(offset);
+        diff.writeInt(length);
+    }
+
+    private static void writeInsert(DataOutputStream diff, byte[] data, int start, int end) throws IOException
+    {
+        diff.writeByte(insert);
+        diff.writeInt(end - start);
+        diff.write(data, start, end - start);
+    }
+
+    @Override
+    public CompressionScheme getInitCompression(byte[] data)
+    {
+        if (data.length >= compression_threshold)
+        {
+            return CompressionSelector.select(data);
+        }
+        else
+        {
+            return new NoCompress();
+        }
+    }
+
+    @Override
+    public Set<CompressionScheme> getCompressionSchemes()
+    {
+        return Set.of(new ZipScheme(), new NoCompress());
+    }
+}
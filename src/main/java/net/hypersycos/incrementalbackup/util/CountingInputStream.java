@@ -0,0 +1,47 @@
+package net.hypersycos.incrementalbackup.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, so a reader can tell where the last complete record ended
+ */
+public class CountingInputStream extends FilterInputStream
+{
+    private long count = 0;
+
+    public CountingInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    public long getCount()
+    {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b != -1) count++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int read = super.read(b, off, len);
+        if (read > 0) count += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+}
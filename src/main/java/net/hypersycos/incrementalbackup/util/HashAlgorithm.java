@@ -0,0 +1,178 @@
+package net.hypersycos.incrementalbackup.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Hash functions available for change detection. Each thread reuses a single hasher per algorithm, and files are
+ * streamed through it, so hashing never needs the whole file in memory.
+ */
+public enum HashAlgorithm
+{
+    MD5(() -> new DigestHasher("MD5")),
+    SHA256(() -> new DigestHasher("SHA-256")),
+    CRC32C(() -> new ChecksumHasher(new CRC32C())),
+    XXH64(XXHash64::new);
+
+    //files at least this big are memory mapped rather than read through a buffer
+    private static final long mapThreshold = 4*1024*1024;
+    private static final int mapWindow = 64*1024*1024;
+    private static final ThreadLocal<ByteBuffer> readBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(256*1024));
+
+    private final ThreadLocal<Hasher> hashers;
+
+    HashAlgorithm(Supplier<Hasher> constructor)
+    {
+        this.hashers = ThreadLocal.withInitial(constructor);
+    }
+
+    /**
+     * Returns this thread's hasher for the algorithm, reset and ready for use
+     */
+    public Hasher get()
+    {
+        Hasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * Hashes data in memory
+     * @param data The data being hashed
+     * @return Byte array of the hash value
+     */
+    public byte[] hash(byte[] data)
+    {
+        Hasher hasher = get();
+        hasher.update(ByteBuffer.wrap(data));
+        return hasher.digest();
+    }
+
+    /**
+     * Hashes everything left in a stream, without closing it
+     * @param in Stream to hash
+     * @return Byte array of the hash value
+     * @throws IOException Thrown if unable to read the stream
+     */
+    public byte[] hash(InputStream in) throws IOException
+    {
+        Hasher hasher = get();
+        byte[] buffer = new byte[64*1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            hasher.update(ByteBuffer.wrap(buffer, 0, read));
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * Hashes a file by streaming it from a FileChannel, memory mapping large files
+     * @param file File to hash
+     * @return Byte array of the hash value
+     * @throws IOException Thrown if unable to read file
+     */
+    public byte[] hash(Path file) throws IOException
+    {
+        Hasher hasher = get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size >= mapThreshold)
+            {
+                for (long position = 0; position < size; position += mapWindow)
+                {
+                    MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(mapWindow, size - position));
+                    hasher.update(window);
+                }
+            }
+            else
+            {
+                ByteBuffer buffer = readBuffers.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1)
+                {
+                    buffer.flip();
+                    hasher.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return hasher.digest();
+    }
+
+    private static class DigestHasher implements Hasher
+    {
+        private final MessageDigest digest;
+
+        DigestHasher(String algorithm)
+        {
+            try
+            {
+                digest = MessageDigest.getInstance(algorithm);
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new AssertionError(algorithm + " unavailable");
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer data)
+        {
+            digest.update(data);
+        }
+
+        @Override
+        public byte[] digest()
+        {
+            return digest.digest();
+        }
+
+        @Override
+        public void reset()
+        {
+            digest.reset();
+        }
+    }
+
+    private static class ChecksumHasher implements Hasher
+    {
+        private final Checksum checksum;
+
+        ChecksumHasher(Checksum checksum)
+        {
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void update(ByteBuffer data)
+        {
+            checksum.update(data);
+        }
+
+        @Override
+        public byte[] digest()
+        {
+            byte[] value = ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array();
+            checksum.reset();
+            return value;
+        }
+
+        @Override
+        public void reset()
+        {
+            checksum.reset();
+        }
+    }
+}
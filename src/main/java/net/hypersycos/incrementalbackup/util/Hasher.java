@@ -0,0 +1,22 @@
+package net.hypersycos.incrementalbackup.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A streaming hash function. Instances are not thread safe; use HashAlgorithm to get one per thread.
+ */
+public interface Hasher
+{
+    /**
+     * Adds the remaining bytes of data to the hash, leaving data's position at its limit
+     */
+    void update(ByteBuffer data);
+
+    /**
+     * Finishes the hash and resets the hasher for reuse
+     * @return Byte array of the hash value
+     */
+    byte[] digest();
+
+    void reset();
+}
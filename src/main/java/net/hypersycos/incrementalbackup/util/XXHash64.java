@@ -0,0 +1,131 @@
+package net.hypersycos.incrementalbackup.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of the 64-bit xxHash non-cryptographic hash, with a seed of 0
+ */
+public class XXHash64 implements Hasher
+{
+    private static final long prime1 = 0x9E3779B185EBCA87L;
+    private static final long prime2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long prime3 = 0x165667B19E3779F9L;
+    private static final long prime4 = 0x85EBCA77C2B2AE63L;
+    private static final long prime5 = 0x27D4EB2F165667C5L;
+
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    //bytes which didn't fill a 32 byte stripe, carried over to the next update
+    private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    public XXHash64()
+    {
+        reset();
+    }
+
+    @Override
+    public void reset()
+    {
+        v1 = prime1 + prime2;
+        v2 = prime2;
+        v3 = 0;
+        v4 = -prime1;
+        totalLength = 0;
+        pending.clear();
+    }
+
+    @Override
+    public void update(ByteBuffer data)
+    {
+        ByteOrder order = data.order();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        totalLength += data.remaining();
+        if (pending.position() > 0)
+        {
+            while (pending.hasRemaining() && data.hasRemaining())
+            {
+                pending.put(data.get());
+            }
+            if (pending.hasRemaining())
+            {
+                data.order(order);
+                return;
+            }
+            pending.flip();
+            stripe(pending);
+            pending.clear();
+        }
+        while (data.remaining() >= 32)
+        {
+            stripe(data);
+        }
+        pending.put(data);
+        data.order(order);
+    }
+
+    private void stripe(ByteBuffer data)
+    {
+        v1 = round(v1, data.getLong());
+        v2 = round(v2, data.getLong());
+        v3 = round(v3, data.getLong());
+        v4 = round(v4, data.getLong());
+    }
+
+    @Override
+    public byte[] digest()
+    {
+        long hash;
+        if (totalLength >= 32)
+        {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        }
+        else
+        {
+            hash = prime5;
+        }
+        hash += totalLength;
+
+        pending.flip();
+        while (pending.remaining() >= 8)
+        {
+            hash ^= round(0, pending.getLong());
+            hash = Long.rotateLeft(hash, 27) * prime1 + prime4;
+        }
+        if (pending.remaining() >= 4)
+        {
+            hash ^= Integer.toUnsignedLong(pending.getInt()) * prime1;
+            hash = Long.rotateLeft(hash, 23) * prime2 + prime3;
+        }
+        while (pending.hasRemaining())
+        {
+            hash ^= Byte.toUnsignedLong(pending.get()) * prime5;
+            hash = Long.rotateLeft(hash, 11) * prime1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= prime2;
+        hash ^= hash >>> 29;
+        hash *= prime3;
+        hash ^= hash >>> 32;
+        reset();
+        return ByteBuffer.allocate(8).putLong(hash).array();
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        accumulator += input * prime2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * prime1;
+    }
+
+    private static long mergeRound(long accumulator, long value)
+    {
+        accumulator ^= round(0, value);
+        return accumulator * prime1 + prime4;
+    }
+}
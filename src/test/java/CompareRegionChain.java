@@ -0,0 +1,222 @@
+import net.hypersycos.incrementalbackup.compression.CompressedFile;
+import net.hypersycos.incrementalbackup.compression.CompressionScheme;
+import net.hypersycos.incrementalbackup.compression.NoCompress;
+import net.hypersycos.incrementalbackup.handlers.MCAHandler;
+import net.hypersycos.incrementalbackup.util.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checks that MCAHandler rebuilds a region chain the same way whichever route a restore takes: combineAll, which
+ * replays the chain chunk by chunk, compose followed by a single combine, and combining each difference in turn.
+ * Takes versions of a region file, oldest first. More versions are derived from the last one so the chain always
+ * covers a chunk removed then added again, chunks moved within the file, and chunks diffed as stored: ones
+ * compressed at another level, LZ4 and external .mcc stubs.
+ * Usage: CompareRegionChain r.0.0.mca [r.0.0.mca ...]
+ */
+public class CompareRegionChain
+{
+    private record Chunk(byte type, byte[] payload, int timestamp){}
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.out.println("Usage: CompareRegionChain r.0.0.mca [r.0.0.mca ...]");
+            return;
+        }
+        List<byte[]> versions = new ArrayList<>();
+        for (String arg : args)
+        {
+            versions.add(Files.readAllBytes(Paths.get(arg)));
+        }
+        versions.addAll(deriveVersions(versions.get(versions.size() - 1)));
+
+        boolean passed = compare(new MCAHandler(), "binary", versions);
+        passed &= compare(new MCAHandler(true), "structural", versions);
+        System.out.println(passed ? "All routes match" : "Routes differ");
+        if (!passed) System.exit(1);
+    }
+
+    /**
+     * Rebuilds every prefix of the chain by each route, and compares them with each other and with the version
+     */
+    private static boolean compare(MCAHandler handler, String label, List<byte[]> versions) throws IOException
+    {
+        Path directory = Files.createTempDirectory("regionchain");
+        List<CompressedFile> files = new ArrayList<>();
+        files.add(write(directory, 0, new NoCompress(), versions.get(0)));
+        List<byte[]> diffs = new ArrayList<>();
+        boolean passed = true;
+        for (int i = 1; i < versions.size(); i++)
+        {
+            Pair<byte[], CompressionScheme> difference = handler.getDifference(versions.get(i - 1), versions.get(i));
+            diffs.add(difference.first());
+            files.add(write(directory, i, difference.second(), difference.first()));
+
+            byte[] sequential = combineEach(handler, versions.get(0), diffs);
+            byte[] replayed = handler.combineAll(files);
+            byte[] composed = handler.compose(wrap(versions.get(0)), diffs);
+            if (composed != null)
+            {
+                composed = combineEach(handler, versions.get(0), List.of(composed));
+            }
+            boolean matches = handler.verify(wrap(sequential), ByteBuffer.wrap(versions.get(i)))
+                    && Arrays.equals(sequential, replayed)
+                    && (composed == null || Arrays.equals(sequential, composed));
+            System.out.println(label + " 0.." + i + ": " + (matches ? "match" : "DIFFER")
+                    + (composed == null ? " (compose declined)" : ""));
+            passed &= matches;
+        }
+        return passed;
+    }
+
+    private static byte[] combineEach(MCAHandler handler, byte[] base, List<byte[]> diffs)
+    {
+        ByteBuffer buffer = wrap(base);
+        for (byte[] diff : diffs)
+        {
+            int length = handler.getCombinedLength(buffer, diff);
+            if (length > buffer.capacity())
+            {
+                ByteBuffer larger = ByteBuffer.allocate(length);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            buffer = handler.combine(buffer, diff);
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static ByteBuffer wrap(byte[] data)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(data.clone());
+        buffer.position(data.length);
+        return buffer;
+    }
+
+    private static CompressedFile write(Path directory, int minor, CompressionScheme compression, byte[] data) throws IOException
+    {
+        Path file = directory.resolve(minor + ".r.0.0.mca");
+        Files.write(file, compression.compress(data));
+        return new CompressedFile(file, compression);
+    }
+
+    /**
+     * Versions following the last one given: a chunk removed, then added back; every chunk moved; chunks changed to
+     * be stored in ways which can't be recompressed; and those stored chunks changed again
+     */
+    private static List<byte[]> deriveVersions(byte[] region) throws IOException
+    {
+        Map<Integer, Chunk> chunks = read(region);
+        List<Integer> slots = new ArrayList<>(chunks.keySet());
+        if (slots.size() < 4) throw new IllegalArgumentException("The last region needs at least 4 chunks");
+        List<byte[]> derived = new ArrayList<>();
+
+        int removedSlot = slots.get(0);
+        Chunk removedChunk = chunks.remove(removedSlot);
+        derived.add(write(chunks, order(chunks)));
+        chunks.put(removedSlot, new Chunk(removedChunk.type(), removedChunk.payload(), removedChunk.timestamp() + 1));
+        derived.add(write(chunks, order(chunks)));
+
+        List<Integer> reversed = order(chunks);
+        Collections.reverse(reversed);
+        derived.add(write(chunks, reversed));
+
+        //a zlib chunk deflated at another level can't be rebuilt from its decompressed data, so is diffed as stored
+        int relevelled = slots.get(1);
+        chunks.put(relevelled, new Chunk((byte) 2, deflate(plain(chunks.get(relevelled)), Deflater.BEST_SPEED), chunks.get(relevelled).timestamp() + 1));
+        int lz4 = slots.get(2);
+        byte[] lz4Payload = ("LZ4Block" + "x".repeat(200)).getBytes();
+        chunks.put(lz4, new Chunk((byte) 4, lz4Payload, chunks.get(lz4).timestamp() + 1));
+        int external = slots.get(3);
+        chunks.put(external, new Chunk((byte) (2 | 0x80), new byte[0], chunks.get(external).timestamp() + 1));
+        derived.add(write(chunks, order(chunks)));
+
+        byte[] plain = plain(chunks.get(relevelled));
+        plain[plain.length / 2] ^= 1;
+        chunks.put(relevelled, new Chunk((byte) 2, deflate(plain, Deflater.BEST_SPEED), chunks.get(relevelled).timestamp() + 1));
+        byte[] changedLz4 = lz4Payload.clone();
+        changedLz4[100] = 'y';
+        chunks.put(lz4, new Chunk((byte) 4, changedLz4, chunks.get(lz4).timestamp() + 1));
+        chunks.put(external, removedChunk);
+        derived.add(write(chunks, order(chunks)));
+        return derived;
+    }
+
+    private static List<Integer> order(Map<Integer, Chunk> chunks)
+    {
+        return new ArrayList<>(new TreeSet<>(chunks.keySet()));
+    }
+
+    private static byte[] plain(Chunk chunk) throws IOException
+    {
+        if (chunk.type() != 2) throw new IllegalArgumentException("Expected a zlib chunk");
+        return new InflaterInputStream(new ByteArrayInputStream(chunk.payload())).readAllBytes();
+    }
+
+    private static byte[] deflate(byte[] data, int level) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(level)))
+        {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<Integer, Chunk> read(byte[] region)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(region);
+        Map<Integer, Chunk> chunks = new TreeMap<>();
+        for (int slot = 0; slot < 1024; slot++)
+        {
+            int location = buffer.getInt(slot * 4);
+            if (location == 0) continue;
+            int offset = (location >>> 8) * 4096;
+            int length = buffer.getInt(offset);
+            byte type = buffer.get(offset + 4);
+            byte[] payload = Arrays.copyOfRange(region, offset + 5, offset + 4 + length);
+            chunks.put(slot, new Chunk(type, payload, buffer.getInt(4096 + slot * 4)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Lays chunks out in sectors, in the given order
+     */
+    private static byte[] write(Map<Integer, Chunk> chunks, List<Integer> order)
+    {
+        int sectors = 2;
+        for (int slot : order)
+        {
+            sectors += (chunks.get(slot).payload().length + 5 + 4095) / 4096;
+        }
+        ByteBuffer region = ByteBuffer.allocate(sectors * 4096);
+        int sector = 2;
+        for (int slot : order)
+        {
+            Chunk chunk = chunks.get(slot);
+            int count = (chunk.payload().length + 5 + 4095) / 4096;
+            region.putInt(slot * 4, (sector << 8) | count);
+            region.putInt(4096 + slot * 4, chunk.timestamp());
+            region.position(sector * 4096);
+            region.putInt(chunk.payload().length + 1);
+            region.put(chunk.type());
+            region.put(chunk.payload());
+            sector += count;
+        }
+        return region.array();
+    }
+}
@@ -0,0 +1,241 @@
+package net.hypersycos.incrementalbackup.handlers;
+
+import net.querz.nbt.io.NBTDeserializer;
+import net.querz.nbt.io.NBTSerializer;
+import net.querz.nbt.io.NamedTag;
+import net.querz.nbt.tag.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Diffs every chunk of the given region files against changed copies of itself, and checks applying the difference
+ * gives back the changed chunk byte for byte. The changes are the ones worlds see most: entities added at the start
+ * and end of their list, removed, and replaced, block state arrays changed in place, and compound keys added and
+ * removed. With no arguments, a generated chunk is checked instead.
+ * Usage: NBTDiffTest r.0.0.mca [r.0.0.mca ...]
+ */
+public class NBTDiffTest
+{
+    private static final List<String> entityKeys = List.of("Entities", "entities", "block_entities", "TileEntities");
+    private static int checked = 0;
+    private static int failed = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            check("generated", generateChunk());
+        }
+        for (String arg : args)
+        {
+            ByteBuffer region = ByteBuffer.wrap(Files.readAllBytes(Paths.get(arg)));
+            for (int slot = 0; slot < 1024; slot++)
+            {
+                int location = region.getInt(slot * 4);
+                if (location == 0) continue;
+                int offset = (location >>> 8) * 4096;
+                byte type = region.get(offset + 4);
+                if (!MCAHandler.isDecompressible(type)) continue;
+                byte[] payload = Arrays.copyOfRange(region.array(), offset + 5, offset + 4 + region.getInt(offset));
+                check(arg + " slot " + slot, MCAHandler.decompressChunk(payload, type));
+            }
+        }
+        System.out.println(checked + " differences checked, " + failed + " failed");
+        if (failed > 0) System.exit(1);
+    }
+
+    private static void check(String label, byte[] chunk) throws IOException
+    {
+        if (findList(read(chunk).getTag()) != null)
+        {
+            check(label, "entity added first", chunk, root -> {
+                ListTag<Tag<?>> entities = findList(root);
+                entities.add(0, copy(chunk, 0));
+            });
+            check(label, "entity added last", chunk, root -> {
+                ListTag<Tag<?>> entities = findList(root);
+                entities.add(copy(chunk, entities.size() - 1));
+            });
+            check(label, "entity removed", chunk, root -> findList(root).remove(0));
+            check(label, "entity replaced by two", chunk, root -> {
+                ListTag<Tag<?>> entities = findList(root);
+                entities.remove(0);
+                entities.add(0, copy(chunk, entities.size()));
+                entities.add(0, copy(chunk, entities.size() - 1));
+            });
+        }
+        if (findArray(read(chunk).getTag()) != null)
+        {
+            check(label, "block states changed", chunk, root -> {
+                long[] states = findArray(root).getValue();
+                states[0] ^= 1;
+                for (int i = states.length / 2; i < Math.min(states.length, states.length / 2 + 8); i++)
+                {
+                    states[i] = ~states[i];
+                }
+                states[states.length - 1] ^= Long.MIN_VALUE;
+            });
+        }
+        check(label, "key added", chunk, root -> ((CompoundTag) root).put("NBTDiffTest", new IntTag(1)));
+        check(label, "key removed", chunk, root -> {
+            CompoundTag compound = (CompoundTag) root;
+            compound.remove(new ArrayList<>(compound.keySet()).get(compound.size() / 2));
+        });
+    }
+
+    private static void check(String label, String change, byte[] chunk, Consumer<Tag<?>> changer) throws IOException
+    {
+        NamedTag changed = read(chunk);
+        changer.accept(changed.getTag());
+        byte[] newChunk = new NBTSerializer(false).toBytes(changed);
+        byte[] difference = NBTDiff.getDifference(chunk, newChunk);
+        String result;
+        if (difference == null)
+        {
+            result = "no difference";
+        }
+        else if (!Arrays.equals(NBTDiff.apply(chunk, difference), newChunk))
+        {
+            result = "applied difference doesn't match";
+        }
+        else
+        {
+            result = null;
+        }
+        checked++;
+        if (result != null)
+        {
+            failed++;
+            System.out.println(label + ", " + change + ": " + result);
+        }
+    }
+
+    /**
+     * A copy of an entry of the chunk's entity list, read again so it shares nothing with the chunk being changed
+     */
+    private static Tag<?> copy(byte[] chunk, int index)
+    {
+        try
+        {
+            return findList(read(chunk).getTag()).get(index);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static NamedTag read(byte[] chunk) throws IOException
+    {
+        return new NBTDeserializer(false).fromBytes(chunk);
+    }
+
+    /**
+     * The first non-empty entity or tile entity list in the chunk
+     */
+    @SuppressWarnings("unchecked")
+    private static ListTag<Tag<?>> findList(Tag<?> tag)
+    {
+        if (tag instanceof CompoundTag compound)
+        {
+            for (String key : entityKeys)
+            {
+                if (compound.get(key) instanceof ListTag<?> list && list.size() > 0 && list.get(0) instanceof CompoundTag)
+                {
+                    return (ListTag<Tag<?>>) list;
+                }
+            }
+            for (String key : compound.keySet())
+            {
+                ListTag<Tag<?>> list = findList(compound.get(key));
+                if (list != null) return list;
+            }
+        }
+        return null;
+    }
+
+    private static LongArrayTag findArray(Tag<?> tag)
+    {
+        if (tag instanceof LongArrayTag array && array.getValue().length > 0) return array;
+        List<Tag<?>> children = new ArrayList<>();
+        if (tag instanceof CompoundTag compound)
+        {
+            for (String key : compound.keySet())
+            {
+                children.add(compound.get(key));
+            }
+        }
+        else if (tag instanceof ListTag<?> list)
+        {
+            for (int i = 0; i < list.size(); i++)
+            {
+                children.add(list.get(i));
+            }
+        }
+        for (Tag<?> child : children)
+        {
+            LongArrayTag array = findArray(child);
+            if (array != null) return array;
+        }
+        return null;
+    }
+
+    private static byte[] generateChunk() throws IOException
+    {
+        Random random = new Random(0);
+        CompoundTag root = new CompoundTag();
+        root.put("DataVersion", new IntTag(3465));
+        root.put("xPos", new IntTag(0));
+        root.put("zPos", new IntTag(0));
+        ListTag<Tag<?>> sections = newList();
+        for (int y = -4; y < 4; y++)
+        {
+            CompoundTag section = new CompoundTag();
+            section.put("Y", new ByteTag((byte) y));
+            CompoundTag blockStates = new CompoundTag();
+            ListTag<Tag<?>> palette = newList();
+            for (String name : List.of("minecraft:stone", "minecraft:dirt", "minecraft:air"))
+            {
+                CompoundTag entry = new CompoundTag();
+                entry.put("Name", new StringTag(name));
+                palette.add(entry);
+            }
+            blockStates.put("palette", palette);
+            long[] states = new long[256];
+            for (int i = 0; i < states.length; i++)
+            {
+                states[i] = random.nextInt(4) == 0 ? random.nextLong() : 0x1111111111111111L * (y & 1);
+            }
+            blockStates.put("data", new LongArrayTag(states));
+            section.put("block_states", blockStates);
+            sections.add(section);
+        }
+        root.put("sections", sections);
+        ListTag<Tag<?>> entities = newList();
+        for (int i = 0; i < 4; i++)
+        {
+            CompoundTag entity = new CompoundTag();
+            entity.put("id", new StringTag("minecraft:zombie"));
+            ListTag<Tag<?>> position = newList();
+            position.add(new DoubleTag(random.nextDouble() * 16));
+            position.add(new DoubleTag(64.0));
+            position.add(new DoubleTag(random.nextDouble() * 16));
+            entity.put("Pos", position);
+            entity.put("UUID", new IntArrayTag(new int[]{random.nextInt(), random.nextInt(), random.nextInt(), random.nextInt()}));
+            entities.add(entity);
+        }
+        root.put("Entities", entities);
+        return new NBTSerializer(false).toBytes(new NamedTag("", root));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ListTag<Tag<?>> newList()
+    {
+        return (ListTag<Tag<?>>) ListTag.createUnchecked(EndTag.class);
+    }
+}